@@ -9,4 +9,11 @@ public class Urn {
     int id;
     String urn;
     boolean oldEntry;
+    // only set for entries from the reserved block, they are assigned to their element when the URN is written
+    String workId;
+    String structType;
+
+    public Urn(int id, String urn, boolean oldEntry) {
+        this(id, urn, oldEntry, null, null);
+    }
 }
@@ -0,0 +1,175 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.PluginReturnValue;
+
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Prefs;
+
+/**
+ * Registers the URNs of many processes in one job, e.g. to backfill existing processes. The processes are handled in parallel by a bounded number
+ * of threads. The parsed configuration, the client of the URN service and the preferences of the rulesets are read once and shared by all processes
+ * that use them, the database connections are taken from the goobi connection pool. There is no entry point in Goobi workflow, the runner is
+ * called from Java code.
+ */
+@Log4j2
+public class UrnBatchRunner {
+
+    private static final String PLUGIN_TITLE = UrnStepPlugin.PLUGIN_TITLE;
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private final int parallelProcesses;
+    private final Map<String, UrnConfiguration> configurations = new ConcurrentHashMap<>();
+    private final Map<UrnConfiguration, UrnRestClient> clients = new ConcurrentHashMap<>();
+    private final Map<Integer, Prefs> preferences = new ConcurrentHashMap<>();
+
+    /**
+     * @param parallelProcesses maximum number of processes that are handled at the same time
+     */
+    public UrnBatchRunner(int parallelProcesses) {
+        this.parallelProcesses = Math.max(1, parallelProcesses);
+    }
+
+    /**
+     * Registers the URNs of all given processes. An error in one process does not stop the others.
+     *
+     * @param processIds ids of the processes
+     * @return the result of every process in the order of the given ids
+     * @throws InterruptedException if the thread was interrupted while waiting for the processes
+     */
+    public List<ProcessResult> run(List<Integer> processIds) throws InterruptedException {
+        log.info("URN PLUGIN: Starting batch for " + processIds.size() + " processes with " + parallelProcesses + " threads");
+        long start = System.currentTimeMillis();
+        AtomicInteger finished = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelProcesses);
+        List<Future<ProcessResult>> futures = new ArrayList<>(processIds.size());
+        List<ProcessResult> results = new ArrayList<>(processIds.size());
+        try {
+            for (Integer processId : processIds) {
+                futures.add(executor.submit(() -> {
+                    ProcessResult result = runProcess(processId);
+                    int count = finished.incrementAndGet();
+                    if (count % PROGRESS_INTERVAL == 0) {
+                        log.info("URN PLUGIN: Batch finished " + count + " of " + processIds.size() + " processes");
+                    }
+                    return result;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new ProcessResult(processIds.get(i), false, String.valueOf(e.getCause().getMessage()), 0));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long failed = results.stream().filter(result -> !result.isSuccessful()).count();
+        log.info("URN PLUGIN: Finished batch for " + processIds.size() + " processes in " + (System.currentTimeMillis() - start) / 1000 + " s, "
+                + failed + " failed");
+        return results;
+    }
+
+    private ProcessResult runProcess(int processId) {
+        long start = System.currentTimeMillis();
+        try {
+            Process process = loadProcess(processId);
+            if (process == null) {
+                return new ProcessResult(processId, false, "Process not found", System.currentTimeMillis() - start);
+            }
+            UrnConfiguration configuration = getConfiguration(process);
+            UrnRestClient client = clients.computeIfAbsent(configuration, this::createClient);
+            Prefs prefs = getPreferences(process);
+
+            UrnStepPlugin plugin = createPlugin();
+            plugin.initialize(process, configuration, client, prefs);
+            PluginReturnValue value = plugin.run();
+            boolean successful = value != PluginReturnValue.ERROR;
+            return new ProcessResult(processId, successful, successful ? null : plugin.getErrorMessage(), System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            log.error("URN PLUGIN: Batch run failed - ProcessID:" + processId, e);
+            return new ProcessResult(processId, false, e.getMessage(), System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return the process with the given id or null if it does not exist
+     */
+    Process loadProcess(int processId) {
+        return ProcessManager.getProcessById(processId);
+    }
+
+    /**
+     * Returns the configuration of the process. It is read for the step of the process that uses this plugin, or for the first step if there is
+     * none, and shared by all processes with the same project and step title.
+     */
+    UrnConfiguration getConfiguration(Process process) {
+        Step configStep = null;
+        for (Step s : process.getSchritte()) {
+            if (PLUGIN_TITLE.equals(s.getStepPlugin())) {
+                configStep = s;
+                break;
+            }
+        }
+        if (configStep == null) {
+            if (process.getSchritte().isEmpty()) {
+                throw new IllegalArgumentException("The process has no steps to read the configuration for");
+            }
+            configStep = process.getSchritte().get(0);
+        }
+        Step step = configStep;
+        String key = process.getProjekt().getTitel() + "|" + step.getTitel();
+        return configurations.computeIfAbsent(key, k -> new UrnConfiguration(ConfigPlugins.getProjectAndStepConfig(PLUGIN_TITLE, step)));
+    }
+
+    /**
+     * @return the client of the URN service of the configuration, it is created once per configuration
+     */
+    UrnRestClient createClient(UrnConfiguration configuration) {
+        return configuration.createClient();
+    }
+
+    /**
+     * @return the preferences of the ruleset of the process, they are read once per ruleset
+     */
+    Prefs getPreferences(Process process) {
+        return preferences.computeIfAbsent(process.getRegelsatz().getId(), id -> process.getRegelsatz().getPreferences());
+    }
+
+    /**
+     * @return a new plugin for one process
+     */
+    UrnStepPlugin createPlugin() {
+        return new UrnStepPlugin();
+    }
+
+    /**
+     * result of the batch for one process
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class ProcessResult {
+        private final int processId;
+        private final boolean successful;
+        // error message if the process failed
+        private final String message;
+        private final long durationMillis;
+    }
+}
@@ -0,0 +1,141 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Remembers the URNs a run registered for the elements of a process until the METS file with these URNs is written. If a run fails after some
+ * registrations, the next run takes their URNs from here instead of registering new ones. The elements are identified by their position in the
+ * logical structure and their type, therefore the entries are bound to the version of the METS file they were created for. The entries are stored
+ * in the table urn_checkpoint. Errors of the database are only logged, in this case the next run registers new URNs.
+ */
+@Log4j2
+public class UrnCheckpoint implements AutoCloseable {
+    private static final String TABLE = UrnDatabaseSchema.CHECKPOINT_TABLE_NAME;
+
+    private final int processId;
+    private final long metsVersion;
+    private final UrnDatabaseSession session;
+    // false if the session belongs to the run and is closed by it
+    private final boolean ownSession;
+    // true if the process has entries, otherwise clear has nothing to do
+    private boolean used = false;
+
+    /**
+     * @param processId id of the process
+     * @param metsVersion version of the METS file the run started with, e.g. its modification time
+     */
+    public UrnCheckpoint(int processId, long metsVersion) {
+        this(processId, metsVersion, new UrnDatabaseSession(processId), true);
+    }
+
+    /**
+     * creates a checkpoint that uses the database session of the run, the session is not closed by {@link #close()}
+     *
+     * @param processId id of the process
+     * @param metsVersion version of the METS file the run started with, e.g. its modification time
+     * @param session the database session of the run
+     */
+    UrnCheckpoint(int processId, long metsVersion, UrnDatabaseSession session) {
+        this(processId, metsVersion, session, false);
+    }
+
+    private UrnCheckpoint(int processId, long metsVersion, UrnDatabaseSession session, boolean ownSession) {
+        this.processId = processId;
+        this.metsVersion = metsVersion;
+        this.session = session;
+        this.ownSession = ownSession;
+    }
+
+    /**
+     * Returns the URNs a previous run of the process registered. Entries of another version of the METS file are removed, the elements they belong
+     * to may have changed.
+     *
+     * @return the URNs by key of their element, empty if there is nothing to resume
+     */
+    public Map<String, String> load() {
+        Map<String, String> urns = new HashMap<>();
+        try {
+            UrnDatabaseSchema.ensureSchema(session.getConnection());
+            PreparedStatement query = session.prepare("SELECT element_key, urn, mets_version FROM " + TABLE + " WHERE process_id=?");
+            query.setInt(1, processId);
+            int stale = 0;
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getLong(3) == metsVersion) {
+                        urns.put(rs.getString(1), rs.getString(2));
+                    } else {
+                        stale++;
+                    }
+                }
+            }
+            used = !urns.isEmpty();
+            if (stale > 0) {
+                log.warn("URN PLUGIN: " + stale + " URNs of an earlier run were registered for another version of the METS file and are not reused "
+                        + "- ProcessID: " + this.processId);
+                PreparedStatement delete = session.prepare("DELETE FROM " + TABLE + " WHERE process_id=? AND mets_version<>?");
+                delete.setInt(1, processId);
+                delete.setLong(2, metsVersion);
+                delete.executeUpdate();
+            }
+        } catch (SQLException ex) {
+            log.warn("URN PLUGIN: Reading the URNs of an earlier run failed, they are not reused - ProcessID: " + this.processId, ex);
+        }
+        return urns;
+    }
+
+    /**
+     * remembers the URN that was registered for an element
+     *
+     * @param elementKey key of the element
+     * @param urn the registered URN
+     */
+    public void store(String elementKey, String urn) {
+        try {
+            UrnDatabaseSchema.ensureSchema(session.getConnection());
+            PreparedStatement insert = session.prepare("INSERT INTO " + TABLE + " (process_id, element_key, urn, mets_version) VALUES (?,?,?,?) "
+                    + "ON DUPLICATE KEY UPDATE urn=VALUES(urn), mets_version=VALUES(mets_version)");
+            insert.setInt(1, processId);
+            insert.setString(2, elementKey);
+            insert.setString(3, urn);
+            insert.setLong(4, metsVersion);
+            insert.executeUpdate();
+            used = true;
+        } catch (SQLException ex) {
+            log.error("URN PLUGIN: Storing the checkpoint of URN: " + urn + " failed - ProcessID: " + this.processId, ex);
+        }
+    }
+
+    /**
+     * removes all entries of the process, must be called once the URNs are written to the METS file
+     */
+    public void clear() {
+        if (!used) {
+            return;
+        }
+        try {
+            UrnDatabaseSchema.ensureSchema(session.getConnection());
+            PreparedStatement delete = session.prepare("DELETE FROM " + TABLE + " WHERE process_id=?");
+            delete.setInt(1, processId);
+            delete.executeUpdate();
+            used = false;
+        } catch (SQLException ex) {
+            log.error("URN PLUGIN: Removing the checkpoint failed - ProcessID: " + this.processId, ex);
+        }
+    }
+
+    /**
+     * returns the database connection to the pool, unless the session belongs to the run
+     */
+    @Override
+    public void close() {
+        if (ownSession) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Calculates and validates the check digit of URNs as defined by the DNB, see http://www.persistent-identifier.de/?link=316. Every character is
+ * converted to one or two digits, the digits are weighted with their position and the sum is divided by the last digit. The calculation runs in a
+ * single pass over the characters and does not allocate any objects.
+ */
+public final class UrnChecksum {
+
+    private static final int UNMAPPED = -1;
+    private static final int[] CONVERSION_TABLE = initializeConversionTable();
+
+    private UrnChecksum() {
+    }
+
+    /**
+     * calculates the check digit of the given URN
+     *
+     * @param urn the URN without check digit
+     * @return the check digit
+     * @throws IllegalArgumentException if the URN is empty or contains a character that can not be mapped
+     */
+    public static int calculate(CharSequence urn) {
+        if (urn == null || urn.length() == 0) {
+            throw new IllegalArgumentException("URN string is null or empty.");
+        }
+        int result = calculate(urn, urn.length());
+        if (result == UNMAPPED) {
+            throw new IllegalArgumentException("URN " + urn + " contains a character that can not be mapped in the checksum calculation process.");
+        }
+        return result;
+    }
+
+    /**
+     * checks if the last character of the given URN is its correct check digit
+     *
+     * @param urn the URN including the check digit
+     * @return true if the check digit is correct, false if it is wrong or the URN contains a character that can not be mapped
+     */
+    public static boolean isValidChecksum(CharSequence urn) {
+        if (urn == null || urn.length() < 2) {
+            return false;
+        }
+        int last = urn.length() - 1;
+        char checkDigit = urn.charAt(last);
+        if (checkDigit < '0' || checkDigit > '9') {
+            return false;
+        }
+        return calculate(urn, last) == checkDigit - '0';
+    }
+
+    /**
+     * calculates the check digit of the first characters of the URN
+     *
+     * @return the check digit or -1 if a character can not be mapped
+     */
+    private static int calculate(CharSequence urn, int length) {
+        int productSum = 0;
+        int position = 0;
+        int lastDigit = 0;
+        for (int i = 0; i < length; i++) {
+            char c = urn.charAt(i);
+            int value = c < CONVERSION_TABLE.length ? CONVERSION_TABLE[c] : UNMAPPED;
+            if (value == UNMAPPED) {
+                return UNMAPPED;
+            }
+            if (value < 10) {
+                productSum += value * ++position;
+                lastDigit = value;
+            } else {
+                productSum += (value / 10) * ++position; // decade
+                lastDigit = value % 10;
+                productSum += lastDigit * ++position; // unit
+            }
+        }
+        return (productSum / lastDigit) % 10;
+    }
+
+    private static int[] initializeConversionTable() {
+        int[] table = new int[128];
+        Arrays.fill(table, UNMAPPED);
+        String characters = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_.+:-/";
+        int[] values = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 41, 18, 14, 19, 15, 16, 21, 22, 23, 24, 25, 42, 26, 27, 13, 28, 29, 31, 12, 32, 33, 11, 34, 35,
+                36, 37, 38, 43, 47, 49, 17, 39, 45 };
+        for (int i = 0; i < values.length; i++) {
+            char c = characters.charAt(i);
+            table[c] = values[i];
+            // the URN is not case sensitive
+            table[Character.toLowerCase(c)] = values[i];
+        }
+        return table;
+    }
+}
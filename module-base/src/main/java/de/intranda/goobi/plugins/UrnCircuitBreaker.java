@@ -0,0 +1,138 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Stops sending requests to an endpoint of the URN service that does not answer. After the configured number of failed requests in a row the
+ * breaker opens and rejects all requests immediately. Once the open time has passed, a single request is let through as a probe (half-open): if it
+ * succeeds the breaker closes again, otherwise it stays open for another period. There is one breaker per endpoint and settings in the JVM, steps
+ * with different settings for the same endpoint do not change each other's breaker.
+ */
+@Log4j2
+public class UrnCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final Map<String, UrnCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    @Getter
+    private final String endpoint;
+    private final LongSupplier clock;
+    // 0 disables the breaker
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long rejectedRequests;
+
+    UrnCircuitBreaker(String endpoint, int failureThreshold, long openMillis, LongSupplier clock) {
+        this.endpoint = endpoint;
+        this.clock = clock;
+        this.failureThreshold = Math.max(0, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+    }
+
+    /**
+     * Returns the breaker of the given endpoint with the given settings and creates it if necessary. The settings of a breaker never change.
+     *
+     * @param endpoint URI of the URN service
+     * @param failureThreshold number of failed requests in a row that open the breaker, 0 disables it
+     * @param openMillis time in milliseconds the breaker rejects all requests before it lets a probe through
+     * @return the breaker
+     */
+    public static UrnCircuitBreaker getInstance(String endpoint, int failureThreshold, long openMillis) {
+        int threshold = Math.max(0, failureThreshold);
+        long open = Math.max(0, openMillis);
+        return BREAKERS.computeIfAbsent(endpoint + "|" + threshold + "|" + open,
+                key -> new UrnCircuitBreaker(endpoint, threshold, open, System::nanoTime));
+    }
+
+    /**
+     * Checks if a request may be sent. Every successful call must be followed by a call of {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onCancel()}.
+     *
+     * @throws UrnCircuitOpenException if the breaker is open or another request is already probing the endpoint
+     */
+    public synchronized void acquire() throws UrnCircuitOpenException {
+        if (state == State.CLOSED || failureThreshold == 0) {
+            return;
+        }
+        long remaining = openNanos - (clock.getAsLong() - openedAt);
+        if (state == State.OPEN && remaining <= 0) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !probeInFlight) {
+            probeInFlight = true;
+            log.info("URN PLUGIN: sending a probe request to " + endpoint + " after " + failures + " failed requests");
+            return;
+        }
+        rejectedRequests++;
+        throw new UrnCircuitOpenException("URN PLUGIN: The URN service " + endpoint + " did not answer " + failures
+                + " requests in a row, requests are rejected until it is available again. Next attempt in "
+                + Math.max(1, TimeUnit.NANOSECONDS.toSeconds(Math.max(0, remaining))) + " seconds.");
+    }
+
+    /**
+     * closes the breaker after the URN service answered a request
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("URN PLUGIN: the URN service " + endpoint + " is available again");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        probeInFlight = false;
+    }
+
+    /**
+     * counts a request the URN service did not answer and opens the breaker if the threshold is reached or the probe failed
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (failureThreshold == 0) {
+            return;
+        }
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                log.warn("URN PLUGIN: the URN service " + endpoint + " did not answer " + failures + " requests in a row, further requests are "
+                        + "rejected for " + TimeUnit.NANOSECONDS.toSeconds(openNanos) + " seconds");
+            }
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+        }
+        probeInFlight = false;
+    }
+
+    /**
+     * marks the end of a request that neither proves nor disproves the availability of the URN service, e.g. because the thread was interrupted
+     */
+    public synchronized void onCancel() {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getRejectedRequests() {
+        return rejectedRequests;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return endpoint + ": " + state + ", failures in a row " + failures + ", rejected " + rejectedRequests;
+    }
+}
@@ -0,0 +1,15 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the {@link UrnCircuitBreaker} of the URN service is open
+ */
+public class UrnCircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = -6417290385162735140L;
+
+    public UrnCircuitOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,105 @@
+package de.intranda.goobi.plugins;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import lombok.Getter;
+
+/**
+ * The parsed configuration of the plugin. It is read once and can be shared by all runs that use the same configuration block.
+ */
+@Getter
+public class UrnConfiguration {
+
+    private final String uri;
+    private final String namespace;
+    private final String apiUser;
+    private final String apiPassword;
+
+    private final String metsUrnType;
+    private final String modsUrnType;
+    private final boolean setmodsUrn;
+    private final boolean setWorkUrn;
+    private final boolean setAnchorUrn;
+    private final boolean generateChecksum;
+    private final boolean preScan;
+    private final boolean forceUrlUpdate;
+    private final boolean outbox;
+
+    private final int idBlockSize;
+    private final int maxConnectionsPerRoute;
+    private final int parallelRequests;
+    private final double requestsPerSecond;
+    private final int throttleRetries;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int connectionRequestTimeout;
+    private final int circuitBreakerFailures;
+    private final int circuitBreakerOpenSeconds;
+    private final UrnGenerationMethod urnGenerationMethod;
+    private final UrnJournal.Verbosity journalVerbosity;
+
+    private final String[] allowedTypes;
+    private final String publicationUrl;
+    private final String infix;
+
+    /**
+     * reads all parameters from the given configuration block
+     *
+     * @param myconfig the configuration block of the project and step
+     */
+    public UrnConfiguration(HierarchicalConfiguration myconfig) {
+        uri = myconfig.getString("apiUri", "https://api.nbn-resolving.org/v2/");
+        namespace = myconfig.getString("namespace", "urn:nbn:de:gbv:NN");
+        apiUser = myconfig.getString("apiUser", "user");
+        apiPassword = myconfig.getString("apiPassword", "password");
+
+        metsUrnType = myconfig.getString("typeNameMets", "_urn");
+        modsUrnType = myconfig.getString("typeNameMods", "URN");
+
+        setmodsUrn = myconfig.getBoolean("createModsUrns", false);
+        setWorkUrn = myconfig.getBoolean("work", true);
+        setAnchorUrn = myconfig.getBoolean("anchor", false);
+        generateChecksum = myconfig.getBoolean("checksum", false);
+        preScan = myconfig.getBoolean("preScan", true);
+        forceUrlUpdate = myconfig.getBoolean("forceUrlUpdate", false);
+        outbox = myconfig.getBoolean("outbox", false);
+        idBlockSize = myconfig.getInt("idBlockSize", 100);
+        maxConnectionsPerRoute = myconfig.getInt("maxConnectionsPerRoute", 10);
+        parallelRequests = myconfig.getInt("parallelRequests", 1);
+        requestsPerSecond = myconfig.getDouble("requestsPerSecond", 0);
+        throttleRetries = myconfig.getInt("throttleRetries", 5);
+        connectTimeout = myconfig.getInt("connectTimeout", 5000);
+        socketTimeout = myconfig.getInt("socketTimeout", 30000);
+        connectionRequestTimeout = myconfig.getInt("connectionRequestTimeout", 10000);
+        circuitBreakerFailures = myconfig.getInt("circuitBreakerFailures", 5);
+        circuitBreakerOpenSeconds = myconfig.getInt("circuitBreakerOpenSeconds", 30);
+        journalVerbosity = UrnJournal.Verbosity.parse(myconfig.getString("journal", "summary"));
+        String urnGenerationMethodString = myconfig.getString("generationMethod", "increment");
+        UrnGenerationMethod method = null;
+        for (UrnGenerationMethod generationMethod : UrnGenerationMethod.values()) {
+            if (urnGenerationMethodString.equalsIgnoreCase(generationMethod.toString())) {
+                method = generationMethod;
+            }
+        }
+        urnGenerationMethod = method;
+
+        // read Array with allowed elements from configuration
+        allowedTypes = myconfig.getStringArray("allowed/type");
+        publicationUrl = myconfig.getString("url", "https://viewer.example.org/viewer/resolver?urn={pi.urn}");
+        infix = myconfig.getString("infix", null);
+    }
+
+    /**
+     * creates a client for the URN service of this configuration. The HTTP connections, the rate limit and the circuit breaker are shared by all
+     * clients of the same service.
+     *
+     * @return the client
+     */
+    public UrnRestClient createClient() {
+        UrnRestClient client = new UrnRestClient(uri, namespace, apiUser, apiPassword, maxConnectionsPerRoute);
+        client.configureRateLimit(requestsPerSecond, throttleRetries);
+        client.configureTimeouts(connectTimeout, socketTimeout, connectionRequestTimeout);
+        client.configureCircuitBreaker(circuitBreakerFailures, circuitBreakerOpenSeconds * 1000L);
+        return client;
+    }
+}
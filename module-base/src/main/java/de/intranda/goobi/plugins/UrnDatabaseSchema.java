@@ -0,0 +1,330 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Makes sure that the urn_table contains the columns and indexes the plugin relies on and that the additional tables of the plugin exist. The
+ * changes are numbered migrations, the applied ones are recorded in the table urn_schema_version. Every migration checks the current state of the
+ * database first, so it can also be applied to a database that was changed by hand. The pending migrations are applied only once per JVM, a
+ * database lock keeps several Goobi instances from applying them at the same time.
+ */
+@Log4j2
+public final class UrnDatabaseSchema {
+    static final String URN_TABLE_NAME = "urn_table";
+    static final String TOPMOST_KEY_COLUMN_NAME = "topmost_key";
+    private static final String TOPMOST_KEY_INDEX_NAME = "urn_table_topmost_key";
+    static final String WORK_STRUCT_INDEX_NAME = "urn_table_werk_struktur";
+    static final String URN_INDEX_NAME = "urn_table_urn";
+    // used instead of the unique index as long as the table contains duplicate URNs
+    private static final String URN_LOOKUP_INDEX_NAME = "urn_table_urn_lookup";
+    static final String FINGERPRINT_TABLE_NAME = "urn_url_fingerprint";
+    static final String OUTBOX_TABLE_NAME = "urn_outbox";
+    static final String CHECKPOINT_TABLE_NAME = "urn_checkpoint";
+    static final String VERSION_TABLE_NAME = "urn_schema_version";
+
+    private static final String LOCK_NAME = "goobi_urn_schema";
+    private static final int LOCK_TIMEOUT_SECONDS = 600;
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "column " + TOPMOST_KEY_COLUMN_NAME + " with unique index", UrnDatabaseSchema::addTopmostKey),
+            new Migration(2, "table " + FINGERPRINT_TABLE_NAME, UrnDatabaseSchema::createFingerprintTable),
+            new Migration(3, "table " + OUTBOX_TABLE_NAME, UrnDatabaseSchema::createOutboxTable),
+            new Migration(4, "table " + CHECKPOINT_TABLE_NAME, UrnDatabaseSchema::createCheckpointTable),
+            new Migration(5, "index on werk_id and struktur_typ", UrnDatabaseSchema::addWorkStructIndex),
+            new Migration(6, "unique index on urn", UrnDatabaseSchema::addUrnIndex));
+
+    private static volatile boolean checked = false;
+
+    private UrnDatabaseSchema() {
+    }
+
+    /**
+     * Applies all migrations that were not applied yet. Must not be called inside of a transaction, because MySQL commits it before any DDL
+     * statement.
+     *
+     * @param con connection to the goobi database
+     * @throws SQLException if the schema could not be checked or changed
+     */
+    public static void ensureSchema(Connection con) throws SQLException {
+        if (checked) {
+            return;
+        }
+        synchronized (UrnDatabaseSchema.class) {
+            if (checked) {
+                return;
+            }
+            try (Statement create = con.createStatement()) {
+                create.executeUpdate("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE_NAME + " (version INT NOT NULL PRIMARY KEY, "
+                        + "description VARCHAR(255) NOT NULL, applied TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+            }
+            if (getAppliedVersions(con).size() < MIGRATIONS.size()) {
+                lock(con);
+                try {
+                    // another instance may have applied them while this one waited for the lock
+                    applyMigrations(con, getAppliedVersions(con));
+                } finally {
+                    unlock(con);
+                }
+            }
+            checked = true;
+        }
+    }
+
+    /**
+     * @return the number of the newest migration
+     */
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    /**
+     * forgets that the schema was checked, so that the next call of {@link #ensureSchema(Connection)} checks it again. Only used by tests.
+     */
+    static void reset() {
+        checked = false;
+    }
+
+    private static void applyMigrations(Connection con, Set<Integer> applied) throws SQLException {
+        for (Migration migration : MIGRATIONS) {
+            if (applied.contains(migration.version)) {
+                continue;
+            }
+            log.info("URN PLUGIN: applying migration " + migration.version + " of the database schema: " + migration.description);
+            if (!migration.step.apply(con)) {
+                // the migration is tried again after the next restart
+                continue;
+            }
+            try (PreparedStatement insert = con.prepareStatement("INSERT IGNORE INTO " + VERSION_TABLE_NAME + " (version, description) VALUES (?,?)")) {
+                insert.setInt(1, migration.version);
+                insert.setString(2, migration.description);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    static Set<Integer> getAppliedVersions(Connection con) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement query = con.createStatement(); ResultSet rs = query.executeQuery("SELECT version FROM " + VERSION_TABLE_NAME)) {
+            while (rs.next()) {
+                versions.add(rs.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    private static void lock(Connection con) throws SQLException {
+        try (PreparedStatement lock = con.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            lock.setString(1, LOCK_NAME);
+            lock.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = lock.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new SQLException("Timeout while waiting for another Goobi instance to update the URN database schema");
+                }
+            }
+        }
+    }
+
+    private static void unlock(Connection con) {
+        try (PreparedStatement unlock = con.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            unlock.setString(1, LOCK_NAME);
+            unlock.executeQuery().close();
+        } catch (SQLException e) {
+            log.warn("URN PLUGIN: could not release the lock of the database schema", e);
+        }
+    }
+
+    /**
+     * Adds the column topmost_key with a unique index to the urn_table. The column is only filled for anchor and topmost elements, so that the
+     * database itself guarantees that every combination of werk_id and struktur_typ exists only once for them.
+     */
+    private static boolean addTopmostKey(Connection con) throws SQLException {
+        if (!columnExists(con, TOPMOST_KEY_COLUMN_NAME)) {
+            execute(con, "ALTER TABLE " + URN_TABLE_NAME + " ADD COLUMN " + TOPMOST_KEY_COLUMN_NAME + " VARCHAR(255) NULL DEFAULT NULL, "
+                    + "ADD UNIQUE INDEX " + TOPMOST_KEY_INDEX_NAME + " (" + TOPMOST_KEY_COLUMN_NAME + ")");
+        }
+        return true;
+    }
+
+    /**
+     * The table urn_url_fingerprint stores the hash of the urls that were last registered for a URN.
+     */
+    private static boolean createFingerprintTable(Connection con) throws SQLException {
+        execute(con, "CREATE TABLE IF NOT EXISTS " + FINGERPRINT_TABLE_NAME + " (urn VARCHAR(255) NOT NULL PRIMARY KEY, "
+                + "fingerprint CHAR(64) NOT NULL, last_update TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP)");
+        return true;
+    }
+
+    /**
+     * The table urn_outbox contains the URNs that still have to be registered at the URN service.
+     */
+    private static boolean createOutboxTable(Connection con) throws SQLException {
+        execute(con, "CREATE TABLE IF NOT EXISTS " + OUTBOX_TABLE_NAME + " (id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY, "
+                + "urn VARCHAR(255) NOT NULL, api_uri VARCHAR(255) NOT NULL, urls TEXT NOT NULL, process_id INT NOT NULL, "
+                + "attempts INT NOT NULL DEFAULT 0, next_attempt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, last_error VARCHAR(1024) NULL, "
+                + "KEY urn_outbox_due (api_uri, next_attempt), KEY urn_outbox_urn (urn))");
+        return true;
+    }
+
+    /**
+     * The table urn_checkpoint contains the URNs a run registered for its elements until the METS file with these URNs was written.
+     */
+    private static boolean createCheckpointTable(Connection con) throws SQLException {
+        execute(con, "CREATE TABLE IF NOT EXISTS " + CHECKPOINT_TABLE_NAME + " (process_id INT NOT NULL, "
+                + "element_key VARCHAR(255) NOT NULL, urn VARCHAR(255) NOT NULL, mets_version BIGINT NOT NULL, "
+                + "created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (process_id, element_key))");
+        return true;
+    }
+
+    /**
+     * The entries of anchor and topmost elements are searched by werk_id and struktur_typ.
+     */
+    private static boolean addWorkStructIndex(Connection con) throws SQLException {
+        if (!indexExists(con, false, "werk_id", "struktur_typ")) {
+            log.info("URN PLUGIN: creating index " + WORK_STRUCT_INDEX_NAME + ", this may take a while for a large " + URN_TABLE_NAME);
+            execute(con, "ALTER TABLE " + URN_TABLE_NAME + " ADD INDEX " + WORK_STRUCT_INDEX_NAME + " (werk_id, struktur_typ)");
+        }
+        return true;
+    }
+
+    /**
+     * Every URN may exist only once. If the table already contains duplicates, a plain index is created instead and the migration is tried again
+     * after the next restart.
+     */
+    private static boolean addUrnIndex(Connection con) throws SQLException {
+        if (indexExists(con, true, "urn")) {
+            return true;
+        }
+        String duplicate = null;
+        try (Statement query = con.createStatement(); ResultSet rs = query.executeQuery("SELECT urn FROM " + URN_TABLE_NAME
+                + " WHERE urn IS NOT NULL GROUP BY urn HAVING COUNT(*) > 1 LIMIT 1")) {
+            if (rs.next()) {
+                duplicate = rs.getString(1);
+            }
+        }
+        if (duplicate != null) {
+            log.error("URN PLUGIN: " + URN_TABLE_NAME + " contains the URN " + duplicate + " more than once, the unique index " + URN_INDEX_NAME
+                    + " cannot be created. Please remove the duplicates, the index is created after the next restart.");
+            if (!indexExists(con, false, "urn")) {
+                execute(con, "ALTER TABLE " + URN_TABLE_NAME + " ADD INDEX " + URN_LOOKUP_INDEX_NAME + " (urn)");
+            }
+            return false;
+        }
+        log.info("URN PLUGIN: creating index " + URN_INDEX_NAME + ", this may take a while for a large " + URN_TABLE_NAME);
+        StringBuilder alter = new StringBuilder("ALTER TABLE " + URN_TABLE_NAME + " ADD UNIQUE INDEX " + URN_INDEX_NAME + " (urn)");
+        if (getIndexes(con).containsKey(URN_LOOKUP_INDEX_NAME)) {
+            alter.append(", DROP INDEX ").append(URN_LOOKUP_INDEX_NAME);
+        }
+        execute(con, alter.toString());
+        return true;
+    }
+
+    /**
+     * Creates the value of the topmost_key column for a work and structure type
+     *
+     * @param workID id of the work (ppn)
+     * @param structType name of the structure type
+     * @return the key
+     */
+    static String createTopmostKey(String workID, String structType) {
+        return workID + "|" + structType;
+    }
+
+    private static void execute(Connection con, String ddl) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate(ddl);
+        }
+    }
+
+    private static boolean columnExists(Connection con, String columnName) throws SQLException {
+        DatabaseMetaData metaData = con.getMetaData();
+        try (ResultSet columns = metaData.getColumns(con.getCatalog(), null, URN_TABLE_NAME, columnName)) {
+            return columns.next();
+        }
+    }
+
+    /**
+     * Checks if the urn_table has an index that starts with the given columns and can therefore be used to search them
+     *
+     * @param con connection to the goobi database
+     * @param unique true if the index must be unique and consist of exactly these columns
+     * @param columns names of the columns
+     * @return true if there is such an index
+     */
+    static boolean indexExists(Connection con, boolean unique, String... columns) throws SQLException {
+        List<String> expected = new ArrayList<>();
+        for (String column : columns) {
+            expected.add(column.toLowerCase(Locale.ROOT));
+        }
+        for (IndexInfo index : getIndexes(con).values()) {
+            if (unique && (!index.unique || index.columns.size() != expected.size())) {
+                continue;
+            }
+            if (index.columns.size() >= expected.size() && index.columns.subList(0, expected.size()).equals(expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, IndexInfo> getIndexes(Connection con) throws SQLException {
+        Map<String, IndexInfo> indexes = new HashMap<>();
+        DatabaseMetaData metaData = con.getMetaData();
+        try (ResultSet rs = metaData.getIndexInfo(con.getCatalog(), null, URN_TABLE_NAME, false, true)) {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                String column = rs.getString("COLUMN_NAME");
+                if (name == null || column == null) {
+                    continue;
+                }
+                IndexInfo index = indexes.computeIfAbsent(name, key -> new IndexInfo());
+                index.unique = !rs.getBoolean("NON_UNIQUE");
+                int position = rs.getShort("ORDINAL_POSITION");
+                while (index.columns.size() < position) {
+                    index.columns.add(null);
+                }
+                index.columns.set(position - 1, column.toLowerCase(Locale.ROOT));
+            }
+        }
+        return indexes;
+    }
+
+    private static final class IndexInfo {
+        private boolean unique;
+        private final List<String> columns = new ArrayList<>();
+    }
+
+    @FunctionalInterface
+    private interface MigrationStep {
+        /**
+         * @return true if the migration is complete, false if it shall be tried again later
+         */
+        boolean apply(Connection con) throws SQLException;
+    }
+
+    private static final class Migration {
+        private final int version;
+        private final String description;
+        private final MigrationStep step;
+
+        private Migration(int version, String description, MigrationStep step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+}
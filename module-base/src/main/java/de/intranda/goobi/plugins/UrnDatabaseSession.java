@@ -0,0 +1,197 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.sub.goobi.persistence.managers.MySQLHelper;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Database session for one run of the plugin. It holds a single connection from the goobi connection pool and caches the prepared statements, so
+ * that every statement is prepared only once per run. The connection is taken from the pool on first use and returned by {@link #close()}.
+ */
+@Log4j2
+public class UrnDatabaseSession implements AutoCloseable {
+
+    private final int processId;
+    private final boolean pooled;
+    private Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private boolean inTransaction = false;
+    @Getter
+    @Setter
+    private UrnMetrics.Recorder metrics = UrnMetrics.getInstance().recorder(null, null);
+
+    /**
+     * creates a session that takes its connection from the goobi connection pool
+     *
+     * @param processId id of the process, used for logging
+     */
+    public UrnDatabaseSession(int processId) {
+        this.processId = processId;
+        this.pooled = true;
+    }
+
+    /**
+     * creates a session for an existing connection. The connection is not closed by {@link #close()}.
+     *
+     * @param connection an open connection
+     */
+    UrnDatabaseSession(Connection connection) {
+        this.processId = -1;
+        this.pooled = false;
+        this.connection = connection;
+    }
+
+    /**
+     * @return the connection of this session
+     * @throws SQLException if no connection could be taken from the pool
+     */
+    public Connection getConnection() throws SQLException {
+        if (connection == null) {
+            connection = MySQLHelper.getInstance().getConnection();
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the cached prepared statement for the given SQL or prepares it. The parameters of a cached statement are cleared.
+     *
+     * @param sql the SQL statement
+     * @return the prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Returns the cached prepared statement for the given SQL or prepares it. The parameters of a cached statement are cleared.
+     *
+     * @param sql the SQL statement
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or {@link Statement#NO_GENERATED_KEYS}
+     * @return the prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys + sql;
+        PreparedStatement statement = statements.get(key);
+        if (statement == null || statement.isClosed()) {
+            statement = getConnection().prepareStatement(sql, autoGeneratedKeys);
+            statements.put(key, statement);
+        } else {
+            statement.clearParameters();
+            statement.clearBatch();
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the cached prepared statement for the given SQL and result set type or prepares it. The parameters of a cached statement are cleared.
+     *
+     * @param sql the SQL statement
+     * @param resultSetType a result set type, see {@link java.sql.ResultSet}
+     * @param resultSetConcurrency a concurrency type, see {@link java.sql.ResultSet}
+     * @return the prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement prepare(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        String key = resultSetType + ":" + resultSetConcurrency + sql;
+        PreparedStatement statement = statements.get(key);
+        if (statement == null || statement.isClosed()) {
+            statement = getConnection().prepareStatement(sql, resultSetType, resultSetConcurrency);
+            statements.put(key, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * starts a transaction, does nothing if there is already an open transaction
+     *
+     * @throws SQLException if auto commit could not be disabled
+     */
+    public void beginTransaction() throws SQLException {
+        if (!inTransaction) {
+            getConnection().setAutoCommit(false);
+            inTransaction = true;
+        }
+    }
+
+    /**
+     * commits the open transaction, does nothing if there is none
+     *
+     * @throws SQLException if the transaction could not be committed
+     */
+    public void commit() throws SQLException {
+        if (inTransaction) {
+            try {
+                connection.commit();
+            } finally {
+                endTransaction();
+            }
+        }
+    }
+
+    /**
+     * rolls the open transaction back, does nothing if there is none
+     */
+    public void rollback() {
+        if (inTransaction) {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+                log.error("URN PLUGIN: Rolling back the database transaction failed! - ProcessID: " + this.processId, ex);
+            } finally {
+                endTransaction();
+            }
+        }
+    }
+
+    public boolean isInTransaction() {
+        return inTransaction;
+    }
+
+    private void endTransaction() {
+        inTransaction = false;
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException ex) {
+            log.error("URN PLUGIN: Enabling auto commit failed! - ProcessID: " + this.processId, ex);
+        }
+    }
+
+    /**
+     * Rolls back an open transaction, closes all cached statements and returns the connection to the pool
+     */
+    @Override
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        rollback();
+        for (PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException ex) {
+                log.error("URN PLUGIN: There was an error closing a prepared statement - ProcessID: " + this.processId, ex);
+            }
+        }
+        statements.clear();
+        if (pooled) {
+            try {
+                MySQLHelper.closeConnection(connection);
+            } catch (SQLException ex) {
+                log.error("URN PLUGIN: There was an error closing the  database connection - ProcessID: " + this.processId, ex);
+            }
+            connection = null;
+        }
+    }
+}
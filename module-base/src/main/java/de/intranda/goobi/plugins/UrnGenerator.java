@@ -1,44 +1,87 @@
 package de.intranda.goobi.plugins;
 
-import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 
-import de.sub.goobi.persistence.managers.MySQLHelper;
 import lombok.Getter;
-import lombok.extern.log4j.Log4j2;
 import ugh.dl.DocStructType;
 
-@Log4j2
-public class UrnGenerator {
-    private static HashMap<Character, Integer> checksumConversionTable = initializeUrnChecksumConversionTable();
-    private static final String URN_TABLE_NAME = "urn_table";
-    private static final String URNID_COLUMN_NAME = "urn_id";
-    private static final String WORKID_COLUMN_NAME = "werk_id";
-    private static final String STRUCT_COLUMN_NAME = "struktur_typ";
-    private static final String URN_COLUMN_NAME = "urn";
-    private int processId;
+/**
+ * Allocates the urn_ids of the elements and generates their URNs. The entries are stored in a {@link UrnRepository}, by default in the urn_table
+ * of the Goobi database.
+ */
+public class UrnGenerator implements AutoCloseable {
     @Getter
     private UrnGenerationMethod urnGenerationMethod;
     private boolean generateChecksum = false;
+    @Getter
+    private final UrnRepository repository;
+    private UrnMetrics.Recorder metrics = UrnMetrics.getInstance().recorder(null, null);
 
     public UrnGenerator(UrnGenerationMethod ugm, boolean generateChecksum, int processId) {
+        this(ugm, generateChecksum, processId, 1);
+    }
+
+    /**
+     * @param ugm method used to generate the URN
+     * @param generateChecksum true if a checksum shall be appended to the URN
+     * @param processId id of the process
+     * @param idBlockSize maximum number of urn_ids that are reserved at once for elements that are neither anchor nor topmost
+     */
+    public UrnGenerator(UrnGenerationMethod ugm, boolean generateChecksum, int processId, int idBlockSize) {
+        this(ugm, generateChecksum, new UrnMySqlRepository(processId, idBlockSize));
+    }
+
+    /**
+     * @param ugm method used to generate the URN
+     * @param generateChecksum true if a checksum shall be appended to the URN
+     * @param repository storage of the entries, it is closed together with the generator
+     */
+    public UrnGenerator(UrnGenerationMethod ugm, boolean generateChecksum, UrnRepository repository) {
         if (ugm == null) {
             throw new IllegalArgumentException("Please specify a valid UrnGenerationMethod in the configuration file!");
         }
         this.generateChecksum = generateChecksum;
-        this.processId = processId;
         urnGenerationMethod = ugm;
+        this.repository = repository;
+    }
+
+    /**
+     * Announces how many elements will probably need a new urn_id, so that the ids can be reserved in one block
+     * 
+     * @param expectedElements number of elements that are neither anchor nor topmost and have no URN yet
+     */
+    public void setExpectedElements(int expectedElements) {
+        repository.setExpectedElements(expectedElements);
+    }
+
+    /**
+     * @param metrics recorder for the durations of the database requests
+     */
+    public void setMetrics(UrnMetrics.Recorder metrics) {
+        this.metrics = metrics;
+        repository.setMetrics(metrics);
+    }
+
+    /**
+     * Enables {@link #queueRegistration(Urn, List)} and creates the outbox table if necessary. Must be called before the first URN is allocated.
+     * 
+     * @param apiUri URI of the URN service the registrations are queued for
+     * @throws SQLException if the outbox table could not be created
+     */
+    public void enableOutbox(String apiUri) throws SQLException {
+        repository.enableOutbox(apiUri);
+    }
+
+    /**
+     * Rolls back an unfinished element, removes all reserved urn_ids that were not used during the run and closes the repository. Must be called
+     * at the end of every run.
+     */
+    @Override
+    public void close() {
+        repository.close();
     }
 
     /**
@@ -46,297 +89,159 @@ public class UrnGenerator {
      * corresponding Urn. If the element is not listed there, it is always added to the database and a newly generated URN is returned.
      * 
      * @param workID id of the work (ppn), null will be replaced with empty string
-     * @param structType structure type of the work ('Chapter' ...), null will be replaced with empty string
+     * @param struct structure type of the work ('Chapter' ...), null will be replaced with empty string
      * @return the unique URN value (derived from the primary key of the database)
      * @throws SQLException if the database requests could not be processed
      * @throws UrnDatabaseException if the database is corrupted
      */
     public Urn getUrnId(String workID, DocStructType struct) throws SQLException, UrnDatabaseException {
-        boolean oldEntry = false;
-        String urn = null;
-        int resultInt = -1; // default (illegal) return value - this should never happen
+        if (struct == null) {
+            return getUrnId(workID, null, false);
+        }
+        return getUrnId(workID, struct.getName(), struct.isAnchor() || struct.isTopmost());
+    }
+
+    /**
+     * Like {@link #getUrnId(String, DocStructType)}, for callers without a ruleset. Elements that are neither anchor nor topmost always get a new id,
+     * the entry is assigned to its element when the URN is written. Anchor and topmost elements exist only once, their allocation is only committed
+     * by {@link #writeUrnToDatabase(Urn)} together with the URN. {@link #removeUrnId(int)} rolls back and removes the entry.
+     * 
+     * @param workID id of the work (ppn), null will be replaced with empty string
+     * @param structType name of the structure type, null will be replaced with empty string
+     * @param topmost true for anchor and topmost elements
+     * @return the entry
+     * @throws SQLException if the database requests could not be processed
+     * @throws UrnDatabaseException if the database is corrupted
+     */
+    public Urn getUrnId(String workID, String structType, boolean topmost) throws SQLException, UrnDatabaseException {
         if (workID == null) {
             workID = "";
         }
-        String structType;
-        if (struct == null) {
+        if (structType == null) {
             structType = "";
-        } else {
-            structType = struct.getName();
         }
 
-        Connection con = null;
+        long start = System.nanoTime();
         try {
-            con = MySQLHelper.getInstance().getConnection();
-            try (Statement sLock = con.createStatement()) {
-                // lock table in order to prevent race conditions
-                sLock.executeUpdate("LOCK TABLE " + URN_TABLE_NAME + " WRITE");
-            }
-
-            if (struct != null && (struct.isAnchor() || struct.isTopmost())) {
-                try (PreparedStatement sQuery1 =
-                        con.prepareStatement(
-                                "SELECT " + URNID_COLUMN_NAME + " ," + URN_COLUMN_NAME + " FROM " + URN_TABLE_NAME + " WHERE " + WORKID_COLUMN_NAME
-                                + " = ? AND " + STRUCT_COLUMN_NAME + " = ? ;",
-                                ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-                    sQuery1.setString(1, workID);
-                    sQuery1.setString(2, structType);
-                    ResultSet resultS = sQuery1.executeQuery();
-                    resultS.last();
-                    if (resultS.getRow() > 1) { // DB contains unique structType-workID combination multiple times
-                        throw new UrnDatabaseException("URN database in inconsistent state");
-                    }
-                    if (resultS.getRow() == 1) { // DB contains structType-workID combination already. No insertion.
-                        resultInt = resultS.getInt(URNID_COLUMN_NAME);
-                        urn = resultS.getString(URN_COLUMN_NAME);
-                        oldEntry = true;
-                    }
-                    if (resultS.getRow() == 0) { // DB does not contain structType-workID combination. Insert the new row.
-                        resultInt = createNewDbEntry(workID, structType, con);
-                    }
-                }
-            } else { // multiple entries of same structType-workID combination possible
-                resultInt = createNewDbEntry(workID, structType, con);
+            if (!topmost) {
+                // multiple entries of same structType-workID combination possible
+                return new Urn(repository.nextId(), null, false, workID, structType);
             }
+            return repository.allocateTopmost(workID, structType);
         } catch (SQLException ex) {
+            repository.rollback();
             throw new SQLException("Error getting urn data from database", ex);
         } finally {
-            if (con != null) {
-                try (Statement unLock = con.createStatement()) {
-                    unLock.executeUpdate("UNLOCK TABLES;");
-                }
-                returnConnectionToPool(con);
-            }
+            metrics.record(UrnMetrics.Phase.ALLOCATION, start);
         }
-        return new Urn(resultInt, urn, oldEntry);
     }
 
     /**
-     * Helper Method of getUrnId Create a new Database Entry in the urn_table and return the key of the new row
+     * Assigns a new entry that is neither anchor nor topmost to its element before its URN is registered. If the URN cannot be written after the
+     * registration, the {@link UrnReconciliation} finds the entry by its element. Timestamped URNs cannot be derived from the id, so they are
+     * stored right away. Entries of anchor and topmost elements already belong to their element.
      * 
-     * @param workID
-     * @param structType the structure type
-     * @return key of the new row
-     * @throws SQLException
+     * @param urn the new entry
+     * @param newUrn the URN that will be registered
+     * @throws SQLException if the entry could not be assigned
      */
-    private int createNewDbEntry(String workID, String structType, Connection con) throws SQLException {
-        int resultInt = -1;
-        try (PreparedStatement sUpdate1 =
-                con.prepareStatement("INSERT INTO " + URN_TABLE_NAME + "(" + WORKID_COLUMN_NAME + "," + STRUCT_COLUMN_NAME + ")" + " VALUES(?,?);",
-                        Statement.RETURN_GENERATED_KEYS)) {
-            sUpdate1.setString(1, workID);
-            sUpdate1.setString(2, structType);
-            sUpdate1.executeUpdate();
-            ResultSet rs = sUpdate1.getGeneratedKeys();
-            if (rs.next()) {
-                resultInt = rs.getInt(1);
-            } else {
-                throw new SQLException("Could not retreive newly generated URN from database");
-            }
+    public void assignUrnId(Urn urn, String newUrn) throws SQLException {
+        if (urn.getStructType() == null) {
+            return;
         }
-        return resultInt;
+        repository.assign(urn, urnGenerationMethod == UrnGenerationMethod.TIMESTAMP ? newUrn : null);
     }
 
     /**
-     * creates a timestamp
+     * creates a timestamp, it is never earlier than a previously created one
      * 
      * @return String with timestamp
      */
     public static String generateTimeStamp() {
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuuMMddHHmmss");
-        //maybe switch to INSTANT here (UTC)
-        LocalDateTime localDate = LocalDateTime.now();
-        return dtf.format(localDate);
+        return UrnTimestampGenerator.nextTimestamp();
     }
 
+    /**
+     * Generates the URN of a new entry. With the TIMESTAMP method the id of the entry is appended to the timestamp, so that URNs created in the same
+     * second on any node are still unique.
+     * 
+     * @param prefix the namespace
+     * @param infix optional infix
+     * @param urn the database entry
+     * @return the URN
+     */
     public String generateUrn(String prefix, String infix, Urn urn) {
+        String id;
+        if (urnGenerationMethod == UrnGenerationMethod.TIMESTAMP) {
+            id = UrnTimestampGenerator.nextTimestamp(urn.getId());
+        } else {
+            id = String.valueOf(urn.getId());
+        }
+        return buildUrn(prefix, infix, id, generateChecksum);
+    }
+
+    /**
+     * Helper method of generateUrn. Joins the parts of a URN and appends the checksum.
+     * 
+     * @param prefix the namespace
+     * @param infix optional infix
+     * @param id the unique part of the URN
+     * @param generateChecksum true if a checksum shall be appended
+     * @return the URN
+     */
+    static String buildUrn(String prefix, String infix, String id, boolean generateChecksum) {
         StringBuilder sb = new StringBuilder();
         sb.append(prefix);
         sb.append("-");
         if (!StringUtils.isBlank(infix)) {
             sb.append(infix);
         }
-        if (urnGenerationMethod == UrnGenerationMethod.TIMESTAMP) {
-            sb.append(generateTimeStamp());
-        } else {
-            sb.append(urn.getId());
-        }
+        sb.append(id);
         if (generateChecksum) {
-            sb.append(calculateUrnChecksum(sb.toString()));
+            sb.append(UrnChecksum.calculate(sb));
         }
         return sb.toString();
     }
 
+    /**
+     * Rolls back the open transaction of the element and removes its entry from the repository
+     * 
+     * @param urnId id of the entry
+     * @return true if the entry was removed
+     */
     public boolean removeUrnId(int urnId) {
-        Connection con = null;
-        try {
-            con = MySQLHelper.getInstance().getConnection();
-            try (PreparedStatement deleteQuery = con.prepareStatement("DELETE FROM " + URN_TABLE_NAME + " WHERE " + URNID_COLUMN_NAME + "=?;")) {
-                deleteQuery.setInt(1, urnId);
-                deleteQuery.executeUpdate();
-            }
-        } catch (SQLException ex) {
-            log.error("URN PLUGIN: Removing incomplete URN-Entry with ID: " + urnId + " from Database failed! - ProcessID: " + this.processId, ex);
-            return false;
-        } finally {
-            returnConnectionToPool(con);
-        }
-        return true;
-    }
-
-    private void returnConnectionToPool(Connection con) {
-        try {
-            if (con != null) {
-                MySQLHelper.closeConnection(con);
-            }
-        } catch (SQLException ex) {
-            log.error("URN PLUGIN: There was an error closing the  database connection - ProcessID: " + this.processId, ex);
-        }
-    }
-
-    public boolean writeUrnToDatabase(Urn urn) throws SQLException {
-        Connection con = null;
-        try {
-            con = MySQLHelper.getInstance().getConnection();
-            if (!urn.isOldEntry()) {
-                boolean result = false;
-                try {
-                    try (PreparedStatement updateUrnQuery = con
-                            .prepareStatement("UPDATE " + URN_TABLE_NAME + " SET " + URN_COLUMN_NAME + "=?" + " WHERE " + URNID_COLUMN_NAME + "=?")) {
-                        updateUrnQuery.setString(1, urn.getUrn());
-                        updateUrnQuery.setInt(2, urn.getId());
-                        if (updateUrnQuery.executeUpdate() > 0) {
-                            result = true;
-                        }
-                    }
-                } catch (SQLException ex) {
-                    log.error("URN PLUGIN: Writing URN: " + urn.getUrn() + " to the Database failed.The Database Entry with urn_id: " + urn.getId()
-                    + "is now in an invalid State! - ProcessID:" + this.processId, ex);
-                    return false;
-                }
-                return result;
-            } else {
-                //old entries should not get updated!
-                return false;
-            }
-        } finally {
-            returnConnectionToPool(con);
-        }
-    }
-
-    public boolean findDuplicate(String urn) {
-        Connection con = null;
-        boolean result = false;
-        try {
-            con = MySQLHelper.getInstance().getConnection();
-            try (PreparedStatement checkQuery =
-                    con.prepareStatement("SELECT " + URNID_COLUMN_NAME + " FROM " + URN_TABLE_NAME + " WHERE " + URN_COLUMN_NAME + "=?",
-                            ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-                checkQuery.setString(1, urn);
-                ResultSet resultS = checkQuery.executeQuery();
-                resultS.last();
-                result = resultS.getRow() >= 1;
-            }
-            //if a result was returned there was a duplicate!
-            return result;
-        } catch (SQLException ex) {
-            log.error("URN PLUGIN: SQLException when trying to find a duplicate! - ProcessID: " + this.processId, ex);
-            //shouldn't happen better try again with a new urn
-            return true;
-        } finally {
-            returnConnectionToPool(con);
-        }
+        return repository.delete(urnId);
     }
 
     /**
-     * Helper method of createUrn. Creates JSON-String needed to create an URN
+     * Writes the URN of a new entry and commits the transaction that was started by {@link #getUrnId(String, DocStructType)}
      * 
-     * @author Fabian Sudau
-     * @param Urn
-     * @param urls
-     * @return
-     * @throws IOException
+     * @param urn the new entry
+     * @return true if the URN was written
+     * @throws SQLException
      */
-    private static int calculateUrnChecksum(String urn) {
-        if (urn == null || urn.isEmpty()) {
-            throw new IllegalArgumentException("URN string is null or empty.");
-        }
-        int result = -1; // default (illegal) value
-        urn = urn.toUpperCase();
-        char[] urnChars = urn.toCharArray();
-        List<Integer> digits = new ArrayList<>(urnChars.length * 2);
-
-        for (char c : urnChars) {
-            if (checksumConversionTable.get(c) == null) {
-                throw new IllegalArgumentException("Urn Character " + c + " can not be mapped in the checksum calculation process.");
-            }
-            int currDigit = checksumConversionTable.get(c);
-            if (currDigit < 10) {
-                digits.add(currDigit);
-            } else {
-                digits.add(currDigit / 10); // add decade
-                digits.add(currDigit % 10); // add unit
-            }
-        }
-        int productSum = 0;
-        int count = 0;
-        for (int currDigit : digits) {
-            count++;
-            productSum += currDigit * count;
-        }
-        result = (productSum / digits.get(digits.size() - 1)) % 10;
-        return result;
+    public boolean writeUrnToDatabase(Urn urn) throws SQLException {
+        return writeUrn(urn, null);
     }
 
     /**
-     * @author Fabian Sudau
-     * @return see http://www.persistent-identifier.de/?link=316
+     * Writes the URN of a new entry like {@link #writeUrnToDatabase(Urn)} and adds its registration to the outbox in the same transaction. The URN is
+     * registered later by the {@link UrnOutboxDispatcher}. Needs {@link #enableOutbox(String)}.
+     * 
+     * @param urn the new entry
+     * @param urls the urls of the URN
+     * @return true if the URN was written and queued
+     * @throws SQLException
      */
-    private static HashMap<Character, Integer> initializeUrnChecksumConversionTable() {
-        HashMap<Character, Integer> res = new HashMap<>();
-        res.put('0', 1);
-        res.put('1', 2);
-        res.put('2', 3);
-        res.put('3', 4);
-        res.put('4', 5);
-        res.put('5', 6);
-        res.put('6', 7);
-        res.put('7', 8);
-        res.put('8', 9);
-        res.put('9', 41);
-        res.put('A', 18);
-        res.put('B', 14);
-        res.put('C', 19);
-        res.put('D', 15);
-        res.put('E', 16);
-        res.put('F', 21);
-        res.put('G', 22);
-        res.put('H', 23);
-        res.put('I', 24);
-        res.put('_', 43);
-        res.put('.', 47);
-        res.put('J', 25);
-        res.put('K', 42);
-        res.put('L', 26);
-        res.put('M', 27);
-        res.put('N', 13);
-        res.put('O', 28);
-        res.put('P', 29);
-        res.put('Q', 31);
-        res.put('R', 12);
-        res.put('S', 32);
-        res.put('T', 33);
-        res.put('U', 11);
-        res.put('V', 34);
-        res.put('W', 35);
-        res.put('X', 36);
-        res.put('Y', 37);
-        res.put('Z', 38);
-        res.put('+', 49);
-        res.put(':', 17);
-        res.put('-', 39);
-        res.put('/', 45);
-        return res;
+    public boolean queueRegistration(Urn urn, List<String> urls) throws SQLException {
+        return writeUrn(urn, urls);
     }
 
-}
\ No newline at end of file
+    private boolean writeUrn(Urn urn, List<String> queuedUrls) throws SQLException {
+        if (urn.isOldEntry()) {
+            //old entries should not get updated!
+            return false;
+        }
+        return repository.writeUrn(urn, queuedUrls);
+    }
+}
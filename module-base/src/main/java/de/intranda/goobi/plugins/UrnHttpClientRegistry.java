@@ -0,0 +1,156 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * JVM wide registry of HTTP clients for the URN service. There is one client per API URI, credentials and proxy. Every client has its own pool of
+ * keep-alive connections, so that all steps reuse the already established TLS connections to the resolver. The pool only grows: a step that asks
+ * for fewer connections does not take them away from a concurrent step that asked for more.
+ */
+@Log4j2
+public final class UrnHttpClientRegistry {
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    private static final long IDLE_CONNECTION_SECONDS = 60;
+
+    private static final Map<ClientKey, UrnHttpClient> CLIENTS = new ConcurrentHashMap<>();
+    // replaces the default SSL context of the JVM, only used by tests
+    private static volatile SSLContext sslContext;
+
+    private UrnHttpClientRegistry() {
+    }
+
+    /**
+     * Returns the shared client for the given API, credentials and proxy and creates it if necessary. The pool of an existing client is enlarged if
+     * more connections are requested than it has, it is never reduced.
+     *
+     * @param apiUri URI of the URN service
+     * @param authorization value of the authorization header
+     * @param proxy proxy to use or null
+     * @param maxConnectionsPerRoute maximum number of parallel connections to the URN service, values &lt; 1 use the default for a new client and
+     *            leave an existing client unchanged
+     * @return the shared client
+     */
+    public static UrnHttpClient getClient(String apiUri, String authorization, HttpHost proxy, int maxConnectionsPerRoute) {
+        UrnHttpClient client = CLIENTS.computeIfAbsent(new ClientKey(apiUri, authorization, proxy), key -> new UrnHttpClient(authorization, proxy,
+                maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+        if (maxConnectionsPerRoute > 0) {
+            client.growMaxConnectionsPerRoute(maxConnectionsPerRoute);
+        }
+        return client;
+    }
+
+    /**
+     * Sets the SSL context of the clients that are created afterwards, e.g. to trust the self-signed certificate of a local test resolver
+     *
+     * @param context the SSL context, null for the default of the JVM
+     */
+    static void setSslContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * closes all clients and their connections, mainly used for tests
+     */
+    public static void closeAll() {
+        for (UrnHttpClient client : CLIENTS.values()) {
+            client.close();
+        }
+        CLIENTS.clear();
+    }
+
+    @EqualsAndHashCode
+    private static final class ClientKey {
+        private final String apiUri;
+        private final String authorization;
+        private final HttpHost proxy;
+
+        private ClientKey(String apiUri, String authorization, HttpHost proxy) {
+            this.apiUri = apiUri;
+            this.authorization = authorization;
+            this.proxy = proxy;
+        }
+    }
+
+    /**
+     * A pooled HTTP client together with the precomputed headers every request to the URN service needs
+     */
+    public static final class UrnHttpClient {
+        private final PoolingHttpClientConnectionManager connectionManager;
+        @Getter
+        private final CloseableHttpClient httpClient;
+
+        private UrnHttpClient(String authorization, HttpHost proxy, int maxConnectionsPerRoute) {
+            SSLContext context = sslContext;
+            if (context == null) {
+                connectionManager = new PoolingHttpClientConnectionManager();
+            } else {
+                connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory> create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", new SSLConnectionSocketFactory(context))
+                        .build());
+            }
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setMaxTotal(maxConnectionsPerRoute);
+
+            List<Header> headers = new ArrayList<>();
+            headers.add(new BasicHeader(HttpHeaders.AUTHORIZATION, authorization));
+            headers.add(new BasicHeader(HttpHeaders.ACCEPT, "application/json"));
+
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                    .evictIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+                    .evictExpiredConnections()
+                    .setDefaultHeaders(headers)
+                    .setProxy(proxy)
+                    .build();
+        }
+
+        /**
+         * @return maximum number of parallel connections to the URN service
+         */
+        public int getMaxConnectionsPerRoute() {
+            return connectionManager.getDefaultMaxPerRoute();
+        }
+
+        private synchronized void growMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            if (connectionManager.getDefaultMaxPerRoute() < maxConnectionsPerRoute) {
+                connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+                connectionManager.setMaxTotal(maxConnectionsPerRoute);
+            }
+        }
+
+        private void close() {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.error("URN PLUGIN: could not close the HTTP client", e);
+            }
+        }
+    }
+}
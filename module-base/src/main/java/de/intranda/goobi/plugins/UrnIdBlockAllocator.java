@@ -0,0 +1,146 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Hands out urn_ids for elements that are neither anchor nor topmost. Instead of taking the table lock for every element, a whole block of rows is
+ * inserted in one short transaction. The rows are marked as reserved and are claimed one after the other during the run. Rows that were not claimed
+ * at the end of the run are removed again by {@link #releaseUnusedIds()}.
+ */
+@Log4j2
+public class UrnIdBlockAllocator {
+    static final String RESERVED_MARKER = "_reserved";
+
+    private static final String URN_TABLE_NAME = "urn_table";
+    private static final String URNID_COLUMN_NAME = "urn_id";
+    private static final String WORKID_COLUMN_NAME = "werk_id";
+    private static final String STRUCT_COLUMN_NAME = "struktur_typ";
+
+    private final int maxBlockSize;
+    private final int processId;
+    private final UrnDatabaseSession session;
+    private final Deque<Integer> reservedIds = new ArrayDeque<>();
+    private int expectedElements = 0;
+
+    /**
+     * @param maxBlockSize maximum number of ids that are reserved in one transaction
+     * @param processId id of the process, used for logging
+     * @param session the database session of the run
+     */
+    public UrnIdBlockAllocator(int maxBlockSize, int processId, UrnDatabaseSession session) {
+        this.maxBlockSize = Math.max(1, maxBlockSize);
+        this.processId = processId;
+        this.session = session;
+    }
+
+    /**
+     * Announces how many ids will probably be needed during the run, so that the first block can be sized accordingly
+     *
+     * @param expectedElements number of elements that will get a new URN
+     */
+    public void setExpectedElements(int expectedElements) {
+        this.expectedElements = Math.max(0, expectedElements);
+    }
+
+    /**
+     * Returns the next reserved id. A new block is reserved if all ids of the current block were used. The row is assigned to its element when the
+     * URN is written, see {@link UrnGenerator#writeUrnToDatabase(Urn)}.
+     *
+     * @return the next reserved urn_id
+     * @throws SQLException if a new block could not be reserved
+     */
+    public int nextId() throws SQLException {
+        if (reservedIds.isEmpty()) {
+            reserveBlock();
+        }
+        return reservedIds.pollFirst();
+    }
+
+    /**
+     * Removes all rows of the current block that were not claimed during the run
+     */
+    public void releaseUnusedIds() {
+        if (reservedIds.isEmpty()) {
+            return;
+        }
+        try {
+            PreparedStatement delete = session.prepare(
+                    "DELETE FROM " + URN_TABLE_NAME + " WHERE " + URNID_COLUMN_NAME + "=? AND " + STRUCT_COLUMN_NAME + "=?");
+            for (int urnId : reservedIds) {
+                delete.setInt(1, urnId);
+                delete.setString(2, RESERVED_MARKER);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+            reservedIds.clear();
+        } catch (SQLException ex) {
+            log.error("URN PLUGIN: Releasing " + reservedIds.size() + " reserved URN-Entries failed! - ProcessID: " + this.processId, ex);
+        }
+    }
+
+    /**
+     * Inserts a block of reserved rows in a single transaction and remembers their ids. The block is refused while the session has an open
+     * transaction, committing the block would commit the unfinished entry of an anchor or topmost element as well.
+     *
+     * @throws SQLException if the rows could not be inserted
+     */
+    private void reserveBlock() throws SQLException {
+        if (session.isInTransaction()) {
+            throw new IllegalStateException("URN-Entries cannot be reserved while another transaction of the run is open");
+        }
+        int blockSize = Math.min(maxBlockSize, Math.max(1, expectedElements));
+        long start = System.nanoTime();
+        try {
+            session.beginTransaction();
+            reservedIds.addAll(insertReservedRows(session, blockSize));
+            session.commit();
+            session.getMetrics().record(UrnMetrics.Phase.INSERT, start);
+        } catch (SQLException ex) {
+            reservedIds.clear();
+            session.rollback();
+            throw new SQLException("Error reserving a block of URN-Entries in the database", ex);
+        }
+        if (reservedIds.isEmpty()) {
+            throw new SQLException("Could not retreive reserved URN-Entries from database");
+        }
+        // the remaining elements are covered by the next block
+        expectedElements = Math.max(0, expectedElements - reservedIds.size());
+        log.debug("URN PLUGIN: reserved " + reservedIds.size() + " URN-Entries - ProcessID: " + this.processId);
+    }
+
+    /**
+     * Inserts the given number of reserved rows. Committing is left to the caller.
+     *
+     * @param session the database session
+     * @param blockSize number of rows to insert
+     * @return the ids of the new rows
+     * @throws SQLException if the rows could not be inserted
+     */
+    static List<Integer> insertReservedRows(UrnDatabaseSession session, int blockSize) throws SQLException {
+        List<Integer> ids = new ArrayList<>(blockSize);
+        PreparedStatement insert = session.prepare(
+                "INSERT INTO " + URN_TABLE_NAME + "(" + WORKID_COLUMN_NAME + "," + STRUCT_COLUMN_NAME + ")" + " VALUES(?,?);",
+                Statement.RETURN_GENERATED_KEYS);
+        for (int i = 0; i < blockSize; i++) {
+            insert.setString(1, "");
+            insert.setString(2, RESERVED_MARKER);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        try (ResultSet rs = insert.getGeneratedKeys()) {
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,179 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps the entries in the JVM instead of the Goobi database, for load tests, benchmarks and dry runs. The uniqueness of the entries of anchor and
+ * topmost elements and of the URNs is the same as in the urn_table. The ids come from one sequence, so one repository can be shared by all
+ * generators that run in parallel. There are no transactions: a new entry is visible right away and {@link #delete(int)} removes it again.
+ * Closing the repository does not remove anything.
+ */
+@Log4j2
+public class UrnInMemoryRepository implements UrnRepository {
+
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Integer> topmostIndex = new ConcurrentHashMap<>();
+    private final Map<String, Integer> urnIndex = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> queuedRegistrations = new ConcurrentHashMap<>();
+    private volatile boolean outboxEnabled = false;
+
+    @Override
+    public void enableOutbox(String apiUri) {
+        outboxEnabled = true;
+    }
+
+    /**
+     * The entry itself is created when it is assigned or its URN is written
+     */
+    @Override
+    public int nextId() {
+        return sequence.incrementAndGet();
+    }
+
+    @Override
+    public void assign(Urn urn, String newUrn) {
+        if (newUrn != null) {
+            Integer owner = urnIndex.putIfAbsent(newUrn, urn.getId());
+            if (owner != null && owner != urn.getId()) {
+                throw new IllegalStateException("The URN: " + newUrn + " already belongs to the entry with urn_id: " + owner);
+            }
+        }
+        entries.put(urn.getId(), new Entry(urn.getWorkId(), urn.getStructType(), null, newUrn));
+    }
+
+    @Override
+    public Urn allocateTopmost(String workID, String structType) throws UrnDatabaseException {
+        String key = UrnDatabaseSchema.createTopmostKey(workID, structType);
+        Urn existing = findTopmost(key);
+        if (existing != null) {
+            return existing;
+        }
+        int id = sequence.incrementAndGet();
+        // the entry must exist before other threads can find its id
+        entries.put(id, new Entry(workID, structType, key, null));
+        Integer winner = topmostIndex.putIfAbsent(key, id);
+        if (winner == null) {
+            return new Urn(id, null, false);
+        }
+        // another thread created the same element in the meantime
+        entries.remove(id);
+        existing = findTopmost(key);
+        if (existing == null) {
+            throw new UrnDatabaseException("URN database in inconsistent state");
+        }
+        return existing;
+    }
+
+    @Override
+    public Urn findTopmost(String workID, String structType) {
+        return findTopmost(UrnDatabaseSchema.createTopmostKey(workID, structType));
+    }
+
+    private Urn findTopmost(String key) {
+        Integer id = topmostIndex.get(key);
+        if (id == null) {
+            return null;
+        }
+        Entry entry = entries.get(id);
+        return entry == null ? null : new Urn(id, entry.urn, true);
+    }
+
+    @Override
+    public boolean containsUrn(String urn) {
+        return urnIndex.containsKey(urn);
+    }
+
+    @Override
+    public boolean writeUrn(Urn urn, List<String> queuedUrls) {
+        if (queuedUrls != null && !outboxEnabled) {
+            throw new IllegalStateException("The outbox was not enabled");
+        }
+        Integer owner = urnIndex.putIfAbsent(urn.getUrn(), urn.getId());
+        if (owner != null && owner != urn.getId()) {
+            log.error("URN PLUGIN: Writing URN: " + urn.getUrn() + " failed, it already belongs to the entry with urn_id: " + owner);
+            return false;
+        }
+        Entry written = entries.compute(urn.getId(), (id, entry) -> {
+            if (entry != null) {
+                return new Entry(entry.workId, entry.structType, entry.topmostKey, urn.getUrn());
+            }
+            // entries of elements that are neither anchor nor topmost are created now, others were removed in the meantime
+            return urn.getStructType() == null ? null : new Entry(urn.getWorkId(), urn.getStructType(), null, urn.getUrn());
+        });
+        if (written == null) {
+            urnIndex.remove(urn.getUrn(), urn.getId());
+            return false;
+        }
+        if (queuedUrls != null) {
+            queuedRegistrations.put(urn.getUrn(), Collections.unmodifiableList(queuedUrls));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(int urnId) {
+        Entry entry = entries.get(urnId);
+        if (entry == null) {
+            return true;
+        }
+        // the index first, so that every id in the index has its entry
+        if (entry.topmostKey != null) {
+            topmostIndex.remove(entry.topmostKey, urnId);
+        }
+        entry = entries.remove(urnId);
+        if (entry == null) {
+            return true;
+        }
+        if (entry.urn != null) {
+            urnIndex.remove(entry.urn, urnId);
+            queuedRegistrations.remove(entry.urn);
+        }
+        return true;
+    }
+
+    @Override
+    public void rollback() {
+        // every change is visible right away
+    }
+
+    @Override
+    public void close() {
+        // the entries are kept for the other generators
+    }
+
+    /**
+     * @return number of entries, including entries of anchor and topmost elements without URN
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the urls of the registrations that were queued for the outbox, by URN
+     */
+    public Map<String, List<String>> getQueuedRegistrations() {
+        return Collections.unmodifiableMap(queuedRegistrations);
+    }
+
+    private static final class Entry {
+        private final String workId;
+        private final String structType;
+        // only set for anchor and topmost elements
+        private final String topmostKey;
+        private final String urn;
+
+        private Entry(String workId, String structType, String topmostKey, String urn) {
+            this.workId = workId;
+            this.structType = structType;
+            this.topmostKey = topmostKey;
+            this.urn = urn;
+        }
+    }
+}
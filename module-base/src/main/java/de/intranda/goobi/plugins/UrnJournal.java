@@ -0,0 +1,115 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.Helper;
+
+/**
+ * Collects the messages of one run for the process journal. Errors are written right away, all other messages are kept until the end of the run and
+ * written as a single entry, so that a run over a large structure tree does not write one journal entry per element.
+ */
+public class UrnJournal {
+
+    /**
+     * what is written to the process journal
+     */
+    public enum Verbosity {
+        // only errors
+        ERROR,
+        // errors and one summary with the number of elements per outcome
+        SUMMARY,
+        // errors and one entry with the summary and all other messages
+        ALL;
+
+        /**
+         * @param value name of the verbosity, case insensitive
+         * @return the verbosity, SUMMARY for unknown values
+         */
+        public static Verbosity parse(String value) {
+            for (Verbosity verbosity : values()) {
+                if (verbosity.name().equalsIgnoreCase(value)) {
+                    return verbosity;
+                }
+            }
+            return SUMMARY;
+        }
+    }
+
+    private final int processId;
+    private final Verbosity verbosity;
+    private final List<String> messages = new ArrayList<>();
+    private final Map<UrnMetrics.Outcome, Integer> outcomes = new EnumMap<>(UrnMetrics.Outcome.class);
+
+    /**
+     * @param processId id of the process, nothing is written for ids &lt; 1
+     * @param verbosity what is written to the journal
+     */
+    public UrnJournal(int processId, Verbosity verbosity) {
+        this.processId = processId;
+        this.verbosity = verbosity;
+    }
+
+    /**
+     * Adds a message. Errors are written to the journal right away, other messages are only kept with verbosity ALL.
+     *
+     * @param message the message
+     * @param logType type of the message
+     */
+    public void add(String message, LogType logType) {
+        if (logType == LogType.ERROR) {
+            write(LogType.ERROR, message);
+        } else if (verbosity == Verbosity.ALL) {
+            messages.add(message);
+        }
+    }
+
+    /**
+     * counts an element for the summary
+     *
+     * @param outcome what happened to the element
+     */
+    public void count(UrnMetrics.Outcome outcome) {
+        outcomes.merge(outcome, 1, Integer::sum);
+    }
+
+    /**
+     * Writes the final message of the run together with the summary and the collected messages as one entry. Does nothing with verbosity ERROR,
+     * except for errors.
+     *
+     * @param message final message of the run
+     * @param logType type of the final message
+     */
+    public void flush(String message, LogType logType) {
+        if (logType != LogType.ERROR && verbosity == Verbosity.ERROR) {
+            messages.clear();
+            return;
+        }
+        StringBuilder sb = new StringBuilder(message);
+        sb.append(" (");
+        boolean first = true;
+        for (UrnMetrics.Outcome outcome : UrnMetrics.Outcome.values()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(outcome).append(": ").append(outcomes.getOrDefault(outcome, 0));
+            first = false;
+        }
+        sb.append(')');
+        for (String line : messages) {
+            sb.append('\n').append(line);
+        }
+        messages.clear();
+        write(logType, sb.toString());
+    }
+
+    private void write(LogType logType, String message) {
+        if (processId > 0) {
+            Helper.addMessageToProcessJournal(processId, logType, message);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * JVM wide metrics of the plugin. For every project and URN service it counts the outcome of the elements and records the duration of the phases
+ * of a run in histograms. The metrics are available through JMX as <code>de.intranda.goobi.plugins:type=UrnMetrics</code> and as Prometheus text
+ * via {@link #getPrometheusText()}, together with the state of the {@link UrnRateLimiter} of every URN service.
+ */
+@Log4j2
+public final class UrnMetrics implements UrnMetricsMXBean {
+
+    /**
+     * phases of a run whose duration is recorded
+     */
+    public enum Phase {
+        // getting the urn_id of an element, this used to be the wait for the table lock
+        ALLOCATION("allocation"),
+        INSERT("insert"),
+        URN_UPDATE("urn_update"),
+        POST("post"),
+        PATCH("patch"),
+        METS_READ("mets_read"),
+        METS_WRITE("mets_write");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * what happened to an element
+     */
+    public enum Outcome {
+        CREATED("created"),
+        UPDATED("updated"),
+        // written to the outbox, registered later
+        QUEUED("queued"),
+        // registered by an earlier run that failed before the METS file was written
+        RESUMED("resumed"),
+        SKIPPED("skipped"),
+        FAILED("failed");
+
+        private final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=UrnMetrics";
+    // upper bounds of the histogram buckets in seconds
+    private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+
+    private static final UrnMetrics INSTANCE = new UrnMetrics();
+
+    private final Map<SeriesKey, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<SeriesKey, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    static {
+        INSTANCE.registerMBean();
+    }
+
+    private UrnMetrics() {
+    }
+
+    public static UrnMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a recorder for the given labels. The recorder can be shared by threads.
+     *
+     * @param project title of the project
+     * @param endpoint URI of the URN service
+     * @return the recorder
+     */
+    public Recorder recorder(String project, String endpoint) {
+        return new Recorder(this, project == null ? "" : project, endpoint == null ? "" : endpoint);
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // a redeployed plugin replaces the bean of the old class loader
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException e) {
+            log.warn("URN PLUGIN: could not register the metrics in JMX", e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getOutcomeCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        outcomes.forEach((key, count) -> result.put(key.toString(), count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        histograms.forEach((key, histogram) -> result.put(key.toString(), histogram.getCount()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMedianMillis() {
+        return getQuantileMillis(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getPercentile99Millis() {
+        return getQuantileMillis(0.99);
+    }
+
+    private Map<String, Double> getQuantileMillis(double quantile) {
+        Map<String, Double> result = new TreeMap<>();
+        histograms.forEach((key, histogram) -> result.put(key.toString(), histogram.getQuantile(quantile) * 1000));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getRequestsPerSecond() {
+        Map<String, Double> result = new TreeMap<>();
+        UrnRateLimiter.getAllLimiters().forEach(limiter -> result.put(limiter.getEndpoint(), limiter.getSustainedRequestsPerSecond()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> getConcurrencyLimits() {
+        Map<String, Integer> result = new TreeMap<>();
+        UrnRateLimiter.getAllLimiters().forEach(limiter -> result.put(limiter.getEndpoint(), limiter.getConcurrencyLimit()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getThrottledRequests() {
+        Map<String, Long> result = new TreeMap<>();
+        UrnRateLimiter.getAllLimiters().forEach(limiter -> result.put(limiter.getEndpoint(), limiter.getThrottledRequests()));
+        return result;
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP urn_phase_duration_seconds Duration of the phases of the URN plugin\n");
+        sb.append("# TYPE urn_phase_duration_seconds histogram\n");
+        for (Map.Entry<SeriesKey, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            entry.getValue().appendPrometheus(sb, "urn_phase_duration_seconds", "phase", entry.getKey());
+        }
+        sb.append("# HELP urn_elements_total Elements handled by the URN plugin by outcome\n");
+        sb.append("# TYPE urn_elements_total counter\n");
+        for (Map.Entry<SeriesKey, LongAdder> entry : new TreeMap<>(outcomes).entrySet()) {
+            sb.append("urn_elements_total");
+            entry.getKey().appendLabels(sb, "outcome", null);
+            sb.append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        appendLimiterValues(sb, "urn_requests_per_second", "gauge", "Successful requests per second to the URN service", getRequestsPerSecond());
+        appendLimiterValues(sb, "urn_concurrency_limit", "gauge", "Current limit of parallel requests to the URN service", getConcurrencyLimits());
+        appendLimiterValues(sb, "urn_throttled_requests_total", "counter", "Requests throttled by the URN service", getThrottledRequests());
+        return sb.toString();
+    }
+
+    private static void appendLimiterValues(StringBuilder sb, String name, String type, String help, Map<String, ? extends Number> values) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        values.forEach((endpoint, value) -> sb.append(name).append("{endpoint=\"").append(SeriesKey.escape(endpoint)).append("\"} ")
+                .append(value).append('\n'));
+    }
+
+    @Override
+    public void reset() {
+        histograms.values().forEach(Histogram::reset);
+        outcomes.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * records the metrics of one project and URN service
+     */
+    public static final class Recorder {
+        private final Map<Phase, Histogram> phaseHistograms = new EnumMap<>(Phase.class);
+        private final Map<Outcome, LongAdder> outcomeCounters = new EnumMap<>(Outcome.class);
+
+        private Recorder(UrnMetrics metrics, String project, String endpoint) {
+            for (Phase phase : Phase.values()) {
+                SeriesKey key = new SeriesKey(phase.toString(), project, endpoint);
+                phaseHistograms.put(phase, metrics.histograms.computeIfAbsent(key, k -> new Histogram()));
+            }
+            for (Outcome outcome : Outcome.values()) {
+                SeriesKey key = new SeriesKey(outcome.toString(), project, endpoint);
+                outcomeCounters.put(outcome, metrics.outcomes.computeIfAbsent(key, k -> new LongAdder()));
+            }
+        }
+
+        /**
+         * records the duration of a phase
+         *
+         * @param phase the phase
+         * @param startNanos value of {@link System#nanoTime()} at the start of the phase
+         */
+        public void record(Phase phase, long startNanos) {
+            phaseHistograms.get(phase).record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * counts an element
+         *
+         * @param outcome what happened to the element
+         */
+        public void count(Outcome outcome) {
+            outcomeCounters.get(outcome).increment();
+        }
+    }
+
+    /**
+     * histogram with fixed buckets
+     */
+    private static final class Histogram {
+        // the last bucket counts the values above the largest bound
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        private void record(long nanos) {
+            double seconds = nanos / 1_000_000_000d;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+        }
+
+        private long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * estimates the quantile by linear interpolation inside the bucket that contains it
+         *
+         * @return the quantile in seconds or 0 if there are no values
+         */
+        private double getQuantile(double quantile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            double rank = quantile * count;
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                long bucketCount = counts.get(i);
+                if (bucketCount > 0 && cumulative + bucketCount >= rank) {
+                    double lower = i == 0 ? 0 : BUCKETS[i - 1];
+                    if (i == BUCKETS.length) {
+                        return lower;
+                    }
+                    return lower + (BUCKETS[i] - lower) * (rank - cumulative) / bucketCount;
+                }
+                cumulative += bucketCount;
+            }
+            return BUCKETS[BUCKETS.length - 1];
+        }
+
+        private void appendPrometheus(StringBuilder sb, String name, String labelName, SeriesKey key) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                cumulative += counts.get(i);
+                sb.append(name).append("_bucket");
+                key.appendLabels(sb, labelName, i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf");
+                sb.append(' ').append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum");
+            key.appendLabels(sb, labelName, null);
+            sb.append(' ').append(sumNanos.sum() / 1_000_000_000d).append('\n');
+            sb.append(name).append("_count");
+            key.appendLabels(sb, labelName, null);
+            sb.append(' ').append(cumulative).append('\n');
+        }
+
+        private void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            sumNanos.reset();
+        }
+    }
+
+    private static final class SeriesKey implements Comparable<SeriesKey> {
+        private final String name;
+        private final String project;
+        private final String endpoint;
+
+        private SeriesKey(String name, String project, String endpoint) {
+            this.name = name;
+            this.project = project;
+            this.endpoint = endpoint;
+        }
+
+        private void appendLabels(StringBuilder sb, String labelName, String le) {
+            sb.append('{').append(labelName).append("=\"").append(escape(name)).append("\",project=\"").append(escape(project));
+            sb.append("\",endpoint=\"").append(escape(endpoint)).append('"');
+            if (le != null) {
+                sb.append(",le=\"").append(le).append('"');
+            }
+            sb.append('}');
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        @Override
+        public int compareTo(SeriesKey other) {
+            int result = project.compareTo(other.project);
+            if (result == 0) {
+                result = endpoint.compareTo(other.endpoint);
+            }
+            return result == 0 ? name.compareTo(other.name) : result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) obj;
+            return name.equals(other.name) && project.equals(other.project) && endpoint.equals(other.endpoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, project, endpoint);
+        }
+
+        @Override
+        public String toString() {
+            return name + "{project=\"" + project + "\",endpoint=\"" + endpoint + "\"}";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link UrnMetrics}. The keys of the maps contain the name of the phase or outcome followed by project and endpoint, e.g.
+ * <code>post{project="Archive",endpoint="https://api.nbn-resolving.org/v2/"}</code>.
+ */
+public interface UrnMetricsMXBean {
+
+    /**
+     * @return number of elements per outcome
+     */
+    Map<String, Long> getOutcomeCounts();
+
+    /**
+     * @return number of measurements per phase
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return estimated median duration per phase in milliseconds
+     */
+    Map<String, Double> getMedianMillis();
+
+    /**
+     * @return estimated 99th percentile of the duration per phase in milliseconds
+     */
+    Map<String, Double> getPercentile99Millis();
+
+    /**
+     * @return successful requests per second per endpoint of the URN service, measured by its rate limiter
+     */
+    Map<String, Double> getRequestsPerSecond();
+
+    /**
+     * @return current limit of parallel requests per endpoint of the URN service
+     */
+    Map<String, Integer> getConcurrencyLimits();
+
+    /**
+     * @return number of requests per endpoint of the URN service that were throttled
+     */
+    Map<String, Long> getThrottledRequests();
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    String getPrometheusText();
+
+    /**
+     * removes all recorded values
+     */
+    void reset();
+}
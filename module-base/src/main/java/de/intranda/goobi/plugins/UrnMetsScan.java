@@ -0,0 +1,149 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import lombok.Getter;
+
+/**
+ * Streaming scan of the meta.xml file of a process. It reads the logical structure and the existing URNs without building the UGH object model, so
+ * that the plugin can find out whether it has to parse the file at all.
+ */
+public class UrnMetsScan {
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    /**
+     * the logical elements in the order of the document
+     */
+    @Getter
+    private final List<ScannedElement> elements = new ArrayList<>();
+
+    private UrnMetsScan() {
+    }
+
+    /**
+     * Reads the logical structure of the given file and the values of the METS and MODS URN of every element
+     *
+     * @param metaFile the meta.xml file
+     * @param metsUrnType name of the METS URN metadata
+     * @param modsUrnType name of the MODS URN metadata
+     * @return the result of the scan
+     * @throws IOException if the file could not be read
+     * @throws XMLStreamException if the file is not well formed
+     */
+    public static UrnMetsScan scan(Path metaFile, String metsUrnType, String modsUrnType) throws IOException, XMLStreamException {
+        UrnMetsScan result = new UrnMetsScan();
+        // URN values per id of the descriptive metadata section, index 0 is the METS URN, index 1 the MODS URN
+        Map<String, String[]> urnsBySection = new HashMap<>();
+        Deque<ScannedElement> openDivs = new ArrayDeque<>();
+
+        try (InputStream in = Files.newInputStream(metaFile)) {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                String currentSection = null;
+                boolean inLogicalStructMap = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("dmdSec".equals(name)) {
+                            currentSection = reader.getAttributeValue(null, "ID");
+                        } else if ("metadata".equals(name) && currentSection != null && reader.getAttributeValue(null, "type") == null) {
+                            // simple metadata only, persons and groups can not contain the URN
+                            String metadataName = reader.getAttributeValue(null, "name");
+                            if (metsUrnType.equals(metadataName) || modsUrnType.equals(metadataName)) {
+                                String value = reader.getElementText().trim();
+                                String[] urns = urnsBySection.computeIfAbsent(currentSection, k -> new String[2]);
+                                if (metsUrnType.equals(metadataName) && urns[0] == null) {
+                                    urns[0] = value;
+                                }
+                                if (modsUrnType.equals(metadataName) && urns[1] == null) {
+                                    urns[1] = value;
+                                }
+                            }
+                        } else if ("structMap".equals(name)) {
+                            inLogicalStructMap = "LOGICAL".equals(reader.getAttributeValue(null, "TYPE"));
+                        } else if (inLogicalStructMap && "div".equals(name)) {
+                            ScannedElement element = new ScannedElement(reader.getAttributeValue(null, "TYPE"), reader.getAttributeValue(null, "DMDID"),
+                                    openDivs.size());
+                            result.elements.add(element);
+                            openDivs.push(element);
+                        } else if (inLogicalStructMap && "mptr".equals(name) && !openDivs.isEmpty()) {
+                            // the element points to another file, this is the anchor
+                            openDivs.peek().anchor = true;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("dmdSec".equals(name)) {
+                            currentSection = null;
+                        } else if ("structMap".equals(name)) {
+                            inLogicalStructMap = false;
+                        } else if (inLogicalStructMap && "div".equals(name)) {
+                            openDivs.pop();
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        for (ScannedElement element : result.elements) {
+            String[] urns = element.dmdId == null ? null : urnsBySection.get(element.dmdId);
+            if (urns != null) {
+                element.metsUrn = urns[0];
+                element.modsUrn = urns[1];
+            }
+        }
+        return result;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        try {
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        } catch (IllegalArgumentException e) {
+            // not supported by every implementation, external DTDs are already disabled
+        }
+        return factory;
+    }
+
+    /**
+     * a logical element of the METS file
+     */
+    @Getter
+    public static class ScannedElement {
+        private final String type;
+        // id of the descriptive metadata section, null if the element has none in this file
+        private final String dmdId;
+        // 0 for the outermost element
+        private final int depth;
+        private boolean anchor;
+        private String metsUrn;
+        private String modsUrn;
+
+        private ScannedElement(String type, String dmdId, int depth) {
+            this.type = type;
+            this.dmdId = dmdId;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.List;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Stores the entries in the urn_table of the Goobi database. Every run uses its own repository with one {@link UrnDatabaseSession}, which the run
+ * may share with its {@link UrnCheckpoint}, {@link UrnUrlFingerprints} and {@link UrnOutbox}. No table lock
+ * is taken: elements that are neither anchor nor topmost get their id from a block of reserved rows, anchor and topmost elements are protected by
+ * the unique index on topmost_key. Anchor and topmost elements that already have a URN are usually found in the {@link UrnTopmostCache} without
+ * any database request.
+ */
+@Log4j2
+public class UrnMySqlRepository implements UrnRepository {
+    private static final String URN_TABLE_NAME = "urn_table";
+    private static final String URNID_COLUMN_NAME = "urn_id";
+    private static final String WORKID_COLUMN_NAME = "werk_id";
+    private static final String STRUCT_COLUMN_NAME = "struktur_typ";
+    private static final String URN_COLUMN_NAME = "urn";
+
+    private final int processId;
+    private final UrnDatabaseSession session;
+    // false if the session belongs to the run and is closed by it
+    private final boolean ownSession;
+    private final UrnIdBlockAllocator idAllocator;
+    // URI of the URN service the registrations are queued for, null if the URNs are registered directly
+    private String outboxApiUri;
+    // urn_id of the new anchor or topmost entry whose transaction is open, null if there is none
+    private Integer transactionOwner;
+
+    /**
+     * @param processId id of the process
+     * @param idBlockSize maximum number of urn_ids that are reserved at once for elements that are neither anchor nor topmost
+     */
+    public UrnMySqlRepository(int processId, int idBlockSize) {
+        this(processId, idBlockSize, new UrnDatabaseSession(processId), true);
+    }
+
+    /**
+     * creates a repository that uses the database session of the run, the session is not closed by {@link #close()}
+     *
+     * @param processId id of the process
+     * @param idBlockSize maximum number of urn_ids that are reserved at once for elements that are neither anchor nor topmost
+     * @param session the database session of the run
+     */
+    UrnMySqlRepository(int processId, int idBlockSize, UrnDatabaseSession session) {
+        this(processId, idBlockSize, session, false);
+    }
+
+    private UrnMySqlRepository(int processId, int idBlockSize, UrnDatabaseSession session, boolean ownSession) {
+        this.processId = processId;
+        this.session = session;
+        this.ownSession = ownSession;
+        this.idAllocator = new UrnIdBlockAllocator(idBlockSize, processId, session);
+    }
+
+    @Override
+    public void setExpectedElements(int expectedElements) {
+        idAllocator.setExpectedElements(expectedElements);
+    }
+
+    @Override
+    public void setMetrics(UrnMetrics.Recorder metrics) {
+        session.setMetrics(metrics);
+    }
+
+    @Override
+    public void enableOutbox(String apiUri) throws SQLException {
+        UrnDatabaseSchema.ensureSchema(session.getConnection());
+        outboxApiUri = apiUri;
+    }
+
+    @Override
+    public int nextId() throws SQLException {
+        return idAllocator.nextId();
+    }
+
+    /**
+     * Claims the reserved row for its element, it is not removed by {@link UrnIdBlockAllocator#releaseUnusedIds()} anymore
+     */
+    @Override
+    public void assign(Urn urn, String newUrn) throws SQLException {
+        PreparedStatement assignQuery = session.prepare("UPDATE " + URN_TABLE_NAME + " SET " + WORKID_COLUMN_NAME + "=?, " + STRUCT_COLUMN_NAME
+                + "=?, " + URN_COLUMN_NAME + "=? WHERE " + URNID_COLUMN_NAME + "=? AND " + STRUCT_COLUMN_NAME + "=?");
+        assignQuery.setString(1, urn.getWorkId());
+        assignQuery.setString(2, urn.getStructType());
+        assignQuery.setString(3, newUrn);
+        assignQuery.setInt(4, urn.getId());
+        assignQuery.setString(5, UrnIdBlockAllocator.RESERVED_MARKER);
+        long start = System.nanoTime();
+        try {
+            if (assignQuery.executeUpdate() == 0) {
+                throw new SQLException("The reserved URN-Entry with urn_id: " + urn.getId() + " does not exist anymore");
+            }
+        } finally {
+            session.getMetrics().record(UrnMetrics.Phase.URN_UPDATE, start);
+        }
+    }
+
+    /**
+     * The allocation of a new entry is only committed by {@link #writeUrn(Urn, List)} together with the URN, {@link #delete(int)} rolls it back.
+     * Only one entry can be unfinished at a time, the previous one must be written or removed before the next one is allocated.
+     */
+    @Override
+    public Urn allocateTopmost(String workID, String structType) throws SQLException, UrnDatabaseException {
+        Urn cached = UrnTopmostCache.SHARED.get(workID, structType);
+        if (cached != null) {
+            return cached;
+        }
+        if (session.isInTransaction()) {
+            throw new IllegalStateException("The entry with urn_id: " + transactionOwner + " is not finished yet");
+        }
+        UrnDatabaseSchema.ensureSchema(session.getConnection());
+        Urn urn = allocateTopmostEntry(session, workID, structType);
+        if (session.isInTransaction()) {
+            transactionOwner = urn.getId();
+        }
+        return urn;
+    }
+
+    /**
+     * Returns the entry of an anchor or topmost element. If there is no entry yet, a new one is inserted in a transaction that is left open. The
+     * unique index on topmost_key makes sure that only one of several concurrent steps can insert the entry, the others read the entry of the winner
+     * afterwards. No table lock is needed.
+     *
+     * @param session the database session
+     * @param workID id of the work (ppn)
+     * @param structType name of the structure type
+     * @return the existing or newly created entry
+     * @throws SQLException if the database requests could not be processed
+     * @throws UrnDatabaseException if the database is corrupted
+     */
+    static Urn allocateTopmostEntry(UrnDatabaseSession session, String workID, String structType) throws SQLException, UrnDatabaseException {
+        Urn existing = findTopmostEntry(session, workID, structType);
+        if (existing != null) {
+            return existing;
+        }
+        session.beginTransaction();
+        try {
+            return new Urn(createNewDbEntry(workID, structType, UrnDatabaseSchema.createTopmostKey(workID, structType), session), null, false);
+        } catch (SQLException ex) {
+            session.rollback();
+            if (!isDuplicateKey(ex)) {
+                throw ex;
+            }
+        }
+        // another step inserted the same element in the meantime
+        existing = findTopmostEntry(session, workID, structType);
+        if (existing == null) {
+            throw new UrnDatabaseException("URN database in inconsistent state");
+        }
+        return existing;
+    }
+
+    @Override
+    public Urn findTopmost(String workID, String structType) throws SQLException, UrnDatabaseException {
+        return findTopmostEntry(session, workID, structType);
+    }
+
+    /**
+     * Searches the entry of an anchor or topmost element with the index on werk_id and struktur_typ and adds it to the {@link UrnTopmostCache} if it
+     * has a URN. At most two rows are read, a second row means that the database is inconsistent.
+     *
+     * @return the entry or null if there is none
+     */
+    private static Urn findTopmostEntry(UrnDatabaseSession session, String workID, String structType) throws SQLException, UrnDatabaseException {
+        PreparedStatement sQuery1 = session.prepare(
+                "SELECT " + URNID_COLUMN_NAME + " ," + URN_COLUMN_NAME + " FROM " + URN_TABLE_NAME + " WHERE " + WORKID_COLUMN_NAME
+                        + " = ? AND " + STRUCT_COLUMN_NAME + " = ? LIMIT 2;");
+        sQuery1.setString(1, workID);
+        sQuery1.setString(2, structType);
+        try (ResultSet resultS = sQuery1.executeQuery()) {
+            if (!resultS.next()) {
+                return null;
+            }
+            Urn existing = new Urn(resultS.getInt(URNID_COLUMN_NAME), resultS.getString(URN_COLUMN_NAME), true);
+            if (resultS.next()) { // DB contains unique structType-workID combination multiple times
+                throw new UrnDatabaseException("URN database in inconsistent state");
+            }
+            // DB contains structType-workID combination already. No insertion.
+            UrnTopmostCache.SHARED.put(workID, structType, existing);
+            return existing;
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException ex) {
+        return ex instanceof SQLIntegrityConstraintViolationException || (ex.getSQLState() != null && ex.getSQLState().startsWith("23"));
+    }
+
+    /**
+     * Helper Method of allocateTopmostEntry Create a new Database Entry in the urn_table and return the key of the new row
+     *
+     * @param workID
+     * @param structType the structure type
+     * @param topmostKey value of the unique topmost_key column
+     * @return key of the new row
+     * @throws SQLException
+     */
+    private static int createNewDbEntry(String workID, String structType, String topmostKey, UrnDatabaseSession session) throws SQLException {
+        PreparedStatement sUpdate1 = session.prepare("INSERT INTO " + URN_TABLE_NAME + "(" + WORKID_COLUMN_NAME + "," + STRUCT_COLUMN_NAME + ","
+                + UrnDatabaseSchema.TOPMOST_KEY_COLUMN_NAME + ")" + " VALUES(?,?,?);", Statement.RETURN_GENERATED_KEYS);
+        sUpdate1.setString(1, workID);
+        sUpdate1.setString(2, structType);
+        sUpdate1.setString(3, topmostKey);
+        long start = System.nanoTime();
+        sUpdate1.executeUpdate();
+        session.getMetrics().record(UrnMetrics.Phase.INSERT, start);
+        try (ResultSet rs = sUpdate1.getGeneratedKeys()) {
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        }
+        throw new SQLException("Could not retreive newly generated URN from database");
+    }
+
+    /**
+     * Uses the unique index on urn
+     */
+    @Override
+    public boolean containsUrn(String urn) throws SQLException {
+        PreparedStatement query = session.prepare("SELECT 1 FROM " + URN_TABLE_NAME + " WHERE " + URN_COLUMN_NAME + " = ? LIMIT 1");
+        query.setString(1, urn);
+        try (ResultSet rs = query.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Writes the URN and commits the transaction that was started by {@link #allocateTopmost(String, String)}. A queued registration is added to
+     * the outbox in the same transaction.
+     */
+    @Override
+    public boolean writeUrn(Urn urn, List<String> queuedUrls) {
+        if (queuedUrls != null && outboxApiUri == null) {
+            throw new IllegalStateException("The outbox was not enabled");
+        }
+        boolean result = false;
+        long start = System.nanoTime();
+        try {
+            if (queuedUrls != null) {
+                // entries from the reserved block have no open transaction yet
+                session.beginTransaction();
+            }
+            if (urn.getStructType() != null) {
+                // entry from the reserved block, assign it to its element and write the URN with one statement
+                PreparedStatement claimQuery = session.prepare("UPDATE " + URN_TABLE_NAME + " SET " + WORKID_COLUMN_NAME + "=?, "
+                        + STRUCT_COLUMN_NAME + "=?, " + URN_COLUMN_NAME + "=?" + " WHERE " + URNID_COLUMN_NAME + "=?");
+                claimQuery.setString(1, urn.getWorkId());
+                claimQuery.setString(2, urn.getStructType());
+                claimQuery.setString(3, urn.getUrn());
+                claimQuery.setInt(4, urn.getId());
+                result = claimQuery.executeUpdate() > 0;
+            } else {
+                PreparedStatement updateUrnQuery =
+                        session.prepare("UPDATE " + URN_TABLE_NAME + " SET " + URN_COLUMN_NAME + "=?" + " WHERE " + URNID_COLUMN_NAME + "=?");
+                updateUrnQuery.setString(1, urn.getUrn());
+                updateUrnQuery.setInt(2, urn.getId());
+                result = updateUrnQuery.executeUpdate() > 0;
+            }
+            if (result && queuedUrls != null) {
+                new UrnOutbox(session).enqueue(urn.getUrn(), outboxApiUri, queuedUrls, processId);
+            }
+            if (result) {
+                session.commit();
+            } else {
+                session.rollback();
+            }
+            transactionOwner = null;
+        } catch (SQLException ex) {
+            rollback();
+            log.error("URN PLUGIN: Writing URN: " + urn.getUrn() + " to the Database failed. The Database Entry with urn_id: " + urn.getId()
+                    + " was rolled back! - ProcessID:" + this.processId, ex);
+            return false;
+        } finally {
+            session.getMetrics().record(UrnMetrics.Phase.URN_UPDATE, start);
+        }
+        return result;
+    }
+
+    /**
+     * Rolls back the open transaction of the element and removes its entry from the database and the {@link UrnTopmostCache}. The unfinished entry
+     * of another element is never rolled back.
+     */
+    @Override
+    public boolean delete(int urnId) {
+        if (session.isInTransaction()) {
+            if (transactionOwner == null || transactionOwner != urnId) {
+                throw new IllegalStateException("The entry with urn_id: " + urnId + " cannot be removed while the entry with urn_id: "
+                        + transactionOwner + " is not finished");
+            }
+            rollback();
+        }
+        UrnTopmostCache.SHARED.invalidate(urnId);
+        try {
+            PreparedStatement deleteQuery = session.prepare("DELETE FROM " + URN_TABLE_NAME + " WHERE " + URNID_COLUMN_NAME + "=?;");
+            deleteQuery.setInt(1, urnId);
+            deleteQuery.executeUpdate();
+        } catch (SQLException ex) {
+            log.error("URN PLUGIN: Removing incomplete URN-Entry with ID: " + urnId + " from Database failed! - ProcessID: " + this.processId, ex);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void rollback() {
+        session.rollback();
+        transactionOwner = null;
+    }
+
+    /**
+     * Rolls back an unfinished element, removes all reserved urn_ids that were not used during the run from the database and closes the database
+     * session, unless it belongs to the run.
+     */
+    @Override
+    public void close() {
+        rollback();
+        idAllocator.releaseUnusedIds();
+        if (ownSession) {
+            session.close();
+        }
+    }
+}
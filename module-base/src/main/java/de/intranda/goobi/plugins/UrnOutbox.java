@@ -0,0 +1,182 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * Access to the table urn_outbox. It contains the URNs that were written to the urn_table and the METS file, but are not registered at the URN
+ * service yet. The rows are added in the transaction that writes the URN and removed by the {@link UrnOutboxDispatcher} after the registration.
+ */
+public class UrnOutbox {
+    private static final String TABLE = UrnDatabaseSchema.OUTBOX_TABLE_NAME;
+    // urls can not contain line breaks
+    private static final String URL_SEPARATOR = "\n";
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final UrnDatabaseSession session;
+
+    /**
+     * @param session the database session, the statements take part in its transaction
+     */
+    public UrnOutbox(UrnDatabaseSession session) {
+        this.session = session;
+    }
+
+    /**
+     * adds a registration to the outbox
+     *
+     * @param urn the new URN
+     * @param apiUri URI of the URN service
+     * @param urls the urls of the URN
+     * @param processId id of the process
+     * @throws SQLException if the row could not be inserted
+     */
+    public void enqueue(String urn, String apiUri, List<String> urls, int processId) throws SQLException {
+        PreparedStatement insert = session.prepare("INSERT INTO " + TABLE + " (urn, api_uri, urls, process_id) VALUES (?,?,?,?)");
+        insert.setString(1, urn);
+        insert.setString(2, apiUri);
+        insert.setString(3, String.join(URL_SEPARATOR, urls));
+        insert.setInt(4, processId);
+        insert.executeUpdate();
+    }
+
+    /**
+     * Replaces the urls of a registration that is still waiting in the outbox
+     *
+     * @param urn the URN
+     * @param apiUri URI of the URN service
+     * @param urls the new urls
+     * @return true if the URN was in the outbox, false if it is already registered
+     * @throws SQLException if the row could not be updated
+     */
+    public boolean updateQueuedUrls(String urn, String apiUri, List<String> urls) throws SQLException {
+        PreparedStatement update = session.prepare("UPDATE " + TABLE + " SET urls=? WHERE urn=? AND api_uri=?");
+        update.setString(1, String.join(URL_SEPARATOR, urls));
+        update.setString(2, urn);
+        update.setString(3, apiUri);
+        return update.executeUpdate() > 0;
+    }
+
+    /**
+     * @param urn the URN
+     * @param apiUri URI of the URN service
+     * @return true if the registration of the URN is still waiting in the outbox
+     * @throws SQLException if the table could not be read
+     */
+    public boolean isQueued(String urn, String apiUri) throws SQLException {
+        PreparedStatement query = session.prepare("SELECT 1 FROM " + TABLE + " WHERE urn=? AND api_uri=? LIMIT 1");
+        query.setString(1, urn);
+        query.setString(2, apiUri);
+        try (ResultSet rs = query.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Returns the oldest registrations of the URN service that are due
+     *
+     * @param apiUri URI of the URN service
+     * @param limit maximum number of registrations
+     * @return the registrations in the order they were added
+     * @throws SQLException if the table could not be read
+     */
+    public List<Entry> fetchDue(String apiUri, int limit) throws SQLException {
+        PreparedStatement query = session.prepare("SELECT id, urn, urls, attempts FROM " + TABLE
+                + " WHERE api_uri=? AND next_attempt <= NOW() ORDER BY id LIMIT ?");
+        query.setString(1, apiUri);
+        query.setInt(2, limit);
+        List<Entry> entries = new ArrayList<>();
+        try (ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                entries.add(new Entry(rs.getLong(1), rs.getString(2), Arrays.asList(rs.getString(3).split(URL_SEPARATOR)), rs.getInt(4)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Claims a due registration for a while, so that the dispatchers of other nodes do not send it at the same time. The claim ends when the
+     * registration is removed or postponed, or when the lease runs out, e.g. because the node stopped.
+     *
+     * @param id id of the row
+     * @param leaseSeconds seconds until the registration is due again
+     * @return true if the registration was claimed, false if another dispatcher claimed or removed it in the meantime
+     * @throws SQLException if the row could not be updated
+     */
+    public boolean claim(long id, long leaseSeconds) throws SQLException {
+        PreparedStatement update =
+                session.prepare("UPDATE " + TABLE + " SET next_attempt=TIMESTAMPADD(SECOND, ?, NOW()) WHERE id=? AND next_attempt <= NOW()");
+        update.setLong(1, leaseSeconds);
+        update.setLong(2, id);
+        return update.executeUpdate() == 1;
+    }
+
+    /**
+     * Removes a registration that was sent successfully. If its urls were replaced by {@link #updateQueuedUrls(String, String, List)} since it was
+     * read, the registration is kept, the new urls were not sent yet.
+     *
+     * @param entry the registration as it was sent
+     * @return true if the registration was removed, false if its urls were changed in the meantime
+     * @throws SQLException if the row could not be removed
+     */
+    public boolean remove(Entry entry) throws SQLException {
+        PreparedStatement delete = session.prepare("DELETE FROM " + TABLE + " WHERE id=? AND urls=?");
+        delete.setLong(1, entry.getId());
+        delete.setString(2, String.join(URL_SEPARATOR, entry.getUrls()));
+        return delete.executeUpdate() == 1;
+    }
+
+    /**
+     * makes a claimed registration due again right away, e.g. because its urls were changed while it was sent
+     *
+     * @param id id of the row
+     * @throws SQLException if the row could not be updated
+     */
+    public void release(long id) throws SQLException {
+        PreparedStatement update = session.prepare("UPDATE " + TABLE + " SET next_attempt=NOW() WHERE id=?");
+        update.setLong(1, id);
+        update.executeUpdate();
+    }
+
+    /**
+     * postpones a registration that failed
+     *
+     * @param id id of the row
+     * @param delaySeconds seconds until the next attempt
+     * @param error the reason of the failure
+     * @throws SQLException if the row could not be updated
+     */
+    public void retryLater(long id, long delaySeconds, String error) throws SQLException {
+        PreparedStatement update = session.prepare("UPDATE " + TABLE
+                + " SET attempts=attempts+1, next_attempt=TIMESTAMPADD(SECOND, ?, NOW()), last_error=? WHERE id=?");
+        update.setLong(1, delaySeconds);
+        update.setString(2, error == null || error.length() <= MAX_ERROR_LENGTH ? error : error.substring(0, MAX_ERROR_LENGTH));
+        update.setLong(3, id);
+        update.executeUpdate();
+    }
+
+    /**
+     * a registration in the outbox
+     */
+    @Getter
+    public static class Entry {
+        private final long id;
+        private final String urn;
+        private final List<String> urls;
+        // number of failed attempts
+        private final int attempts;
+
+        private Entry(long id, String urn, List<String> urls, int attempts) {
+            this.id = id;
+            this.urn = urn;
+            this.urls = urls;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.google.gson.JsonSyntaxException;
+
+import de.intranda.goobi.plugins.responsehandler.UrnHttpStatusException;
+import de.sub.goobi.config.ConfigPlugins;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Registers the URNs of the {@link UrnOutbox} in the background. There is one dispatcher per URN service. It is started when the plugin is loaded for
+ * every configuration block that uses the outbox, see {@link #startConfigured(String)}, or by the first step that queues a URN for the service, and
+ * then looks for due registrations periodically. A registration that fails is tried again later with an increasing delay. If the URN service already
+ * knows the URN, e.g. because another node or an earlier attempt registered it, only its urls are replaced. Every registration is claimed before it
+ * is sent, so that the dispatchers of several nodes do not send the same registration. The client is created again when a step brings a configuration
+ * with other settings for the service.
+ */
+@Log4j2
+public final class UrnOutboxDispatcher {
+    private static final long POLL_INTERVAL_SECONDS = 30;
+    private static final int BATCH_SIZE = 100;
+    private static final long MIN_RETRY_DELAY_SECONDS = 30;
+    private static final long MAX_RETRY_DELAY_SECONDS = 3600;
+
+    private static final Map<String, UrnOutboxDispatcher> DISPATCHERS = new ConcurrentHashMap<>();
+    // true once the dispatchers of the configuration file were started
+    private static final AtomicBoolean CONFIGURED_STARTED = new AtomicBoolean();
+
+    private final String apiUri;
+    private final ScheduledExecutorService scheduler;
+    private volatile UrnRestClient client;
+    // the settings of the configuration the client was created from
+    private List<Object> clientSettings;
+    // true while an additional run requested by wakeUp is waiting
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+    private UrnOutboxDispatcher(String apiUri, UrnConfiguration configuration) {
+        this.apiUri = apiUri;
+        update(configuration);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "urn-outbox-" + apiUri);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::dispatch, POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts the dispatcher of the URN service of the configuration if necessary and lets it look for new registrations right away. If the
+     * configuration was changed since the dispatcher was started, the next registrations are sent with the new settings.
+     *
+     * @param configuration configuration with the URN service and its credentials
+     */
+    public static void schedule(UrnConfiguration configuration) {
+        UrnOutboxDispatcher dispatcher = DISPATCHERS.computeIfAbsent(configuration.getUri(), uri -> new UrnOutboxDispatcher(uri, configuration));
+        dispatcher.update(configuration);
+        dispatcher.wakeUp();
+    }
+
+    /**
+     * Starts the dispatchers of all configuration blocks of the plugin that use the outbox, so that the registrations that were queued before a
+     * restart are sent without waiting for the next step. Only the first call reads the configuration file.
+     *
+     * @param pluginTitle title of the plugin, the name of its configuration file
+     */
+    public static void startConfigured(String pluginTitle) {
+        if (!CONFIGURED_STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            XMLConfiguration config = ConfigPlugins.getPluginConfig(pluginTitle);
+            for (HierarchicalConfiguration block : config.configurationsAt("config")) {
+                UrnConfiguration configuration = new UrnConfiguration(block);
+                if (configuration.isOutbox()) {
+                    schedule(configuration);
+                }
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // e.g. outside of Goobi workflow, the dispatchers are started by the next step
+            log.warn("URN PLUGIN: The outbox could not be started from the configuration file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * stops all dispatchers, the registrations stay in the outbox
+     */
+    public static void shutdownAll() {
+        for (UrnOutboxDispatcher dispatcher : DISPATCHERS.values()) {
+            dispatcher.scheduler.shutdownNow();
+        }
+        DISPATCHERS.clear();
+        CONFIGURED_STARTED.set(false);
+    }
+
+    /**
+     * creates a new client if the settings of the configuration differ from the settings of the current client
+     */
+    private synchronized void update(UrnConfiguration configuration) {
+        List<Object> settings = Arrays.asList(configuration.getNamespace(), configuration.getApiUser(), configuration.getApiPassword(),
+                configuration.getMaxConnectionsPerRoute(), configuration.getRequestsPerSecond(), configuration.getThrottleRetries(),
+                configuration.getConnectTimeout(), configuration.getSocketTimeout(), configuration.getConnectionRequestTimeout(),
+                configuration.getCircuitBreakerFailures(), configuration.getCircuitBreakerOpenSeconds());
+        if (!settings.equals(clientSettings)) {
+            if (clientSettings != null) {
+                log.info("URN PLUGIN: The configuration of " + apiUri + " was changed, the outbox uses the new settings");
+            }
+            client = configuration.createClient();
+            clientSettings = settings;
+        }
+    }
+
+    private void wakeUp() {
+        if (wakeUpPending.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                wakeUpPending.set(false);
+                dispatch();
+            });
+        }
+    }
+
+    /**
+     * sends all due registrations in batches
+     */
+    private void dispatch() {
+        try (UrnDatabaseSession session = new UrnDatabaseSession(-1); UrnUrlFingerprints fingerprints = new UrnUrlFingerprints(-1, session)) {
+            UrnDatabaseSchema.ensureSchema(session.getConnection());
+            UrnOutbox outbox = new UrnOutbox(session);
+            UrnRestClient current = client;
+            // a registration that is not finished within the lease, e.g. because the node stopped, is sent again by the next dispatcher
+            long leaseSeconds = MIN_RETRY_DELAY_SECONDS + TimeUnit.MILLISECONDS.toSeconds(2 * current.getRequestTimeoutMillis());
+            List<UrnOutbox.Entry> batch;
+            do {
+                batch = outbox.fetchDue(apiUri, BATCH_SIZE);
+                for (UrnOutbox.Entry entry : batch) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    // another node sends it already
+                    if (outbox.claim(entry.getId(), leaseSeconds)) {
+                        send(current, outbox, fingerprints, entry);
+                    }
+                }
+            } while (batch.size() == BATCH_SIZE);
+        } catch (SQLException | RuntimeException e) {
+            // the next run tries again
+            log.error("URN PLUGIN: Reading the outbox of " + apiUri + " failed", e);
+        }
+    }
+
+    private void send(UrnRestClient client, UrnOutbox outbox, UrnUrlFingerprints fingerprints, UrnOutbox.Entry entry) throws SQLException {
+        try {
+            try {
+                String result = client.registerUrn(entry.getUrn(), entry.getUrls());
+                if (!entry.getUrn().equals(result)) {
+                    throw new IOException("The URN service answered with the URN " + result);
+                }
+            } catch (UrnHttpStatusException e) {
+                if (e.getStatus() != 409) {
+                    throw e;
+                }
+                // the URN exists already, make sure that it has the current urls
+                if (!client.replaceUrls(entry.getUrn(), entry.getUrls())) {
+                    throw new IOException("The urls of the existing URN could not be replaced");
+                }
+            }
+        } catch (IOException | JsonSyntaxException | IllegalArgumentException e) {
+            long delay = Math.min(MAX_RETRY_DELAY_SECONDS, MIN_RETRY_DELAY_SECONDS << Math.min(entry.getAttempts(), 20));
+            log.warn("URN PLUGIN: Registering the URN " + entry.getUrn() + " failed, it is tried again in " + delay + " seconds: " + e.getMessage());
+            outbox.retryLater(entry.getId(), delay, e.getMessage());
+            return;
+        }
+        if (!outbox.remove(entry)) {
+            // a step replaced the urls while they were sent, the URN exists now and the new urls are sent by the next run
+            outbox.release(entry.getId());
+            log.debug("URN PLUGIN: The urls of URN " + entry.getUrn() + " were changed while it was registered, they are sent again");
+            return;
+        }
+        fingerprints.store(entry.getUrn(), UrnUrlFingerprints.fingerprint(entry.getUrn(), entry.getUrls()));
+        log.debug("URN PLUGIN: URN " + entry.getUrn() + " was registered from the outbox");
+    }
+}
@@ -0,0 +1,192 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Getter;
+
+/**
+ * Limits the requests to one endpoint of the URN service. It combines a token bucket for the request rate with an adaptive limit for the number of
+ * parallel requests: every successful request raises the limit slowly (additive increase), every throttled request halves it (multiplicative
+ * decrease) and pauses all requests for the time requested by the Retry-After header. There is one limiter per endpoint in the JVM.
+ */
+public class UrnRateLimiter {
+
+    private static final Map<String, UrnRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+    private static final long DEFAULT_PAUSE_MILLIS = 1000;
+    private static final long MIN_DECREASE_INTERVAL_MILLIS = 1000;
+    private static final long STATISTICS_WINDOW_MILLIS = 10000;
+
+    @Getter
+    private final String endpoint;
+    // 0 means no limit for the request rate
+    private double permitsPerSecond;
+    private int maxConcurrency;
+
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private double concurrencyLimit;
+    private int inFlight;
+    private long pausedUntil;
+    private long lastDecrease;
+
+    private long requests;
+    private long throttledRequests;
+    private long windowStart = System.currentTimeMillis();
+    private long windowCount;
+    private double sustainedRate;
+
+    private UrnRateLimiter(String endpoint, int maxConcurrency) {
+        this.endpoint = endpoint;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.concurrencyLimit = this.maxConcurrency;
+        this.tokens = 1;
+    }
+
+    /**
+     * Returns the limiter of the given endpoint and creates it if necessary. A new limiter has no rate limit until it is configured, the settings of
+     * an existing limiter are not changed.
+     *
+     * @param endpoint URI of the URN service
+     * @param maxConcurrency maximum number of parallel requests of a new limiter, usually the size of the connection pool
+     * @return the limiter
+     */
+    public static UrnRateLimiter getInstance(String endpoint, int maxConcurrency) {
+        return LIMITERS.computeIfAbsent(endpoint, key -> new UrnRateLimiter(key, maxConcurrency));
+    }
+
+    /**
+     * @return all limiters of this JVM
+     */
+    public static Collection<UrnRateLimiter> getAllLimiters() {
+        return Collections.unmodifiableCollection(LIMITERS.values());
+    }
+
+    /**
+     * Changes the settings of the limiter for all clients of the endpoint. Configuring the same settings again changes nothing, the adapted limit of
+     * parallel requests is kept.
+     *
+     * @param permitsPerSecond maximum number of requests per second, 0 for no limit
+     * @param maxConcurrency maximum number of parallel requests
+     */
+    public synchronized void configure(double permitsPerSecond, int maxConcurrency) {
+        double rate = Math.max(0, permitsPerSecond);
+        int concurrency = Math.max(1, maxConcurrency);
+        if (rate == this.permitsPerSecond && concurrency == this.maxConcurrency) {
+            return;
+        }
+        this.permitsPerSecond = rate;
+        this.maxConcurrency = concurrency;
+        if (concurrencyLimit > concurrency) {
+            concurrencyLimit = concurrency;
+        }
+        // waiting requests check the new settings
+        notifyAll();
+    }
+
+    /**
+     * Waits until the request may be sent. Every call must be followed by a call of {@link #release()}.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now < pausedUntil) {
+                wait(pausedUntil - now);
+            } else if (inFlight >= (int) concurrencyLimit) {
+                wait();
+            } else if (permitsPerSecond > 0 && refillTokens() < 1) {
+                wait(Math.max(1, (long) Math.ceil((1 - tokens) / permitsPerSecond * 1000)));
+            } else {
+                if (permitsPerSecond > 0) {
+                    tokens -= 1;
+                }
+                inFlight++;
+                requests++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * marks the end of a request
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * raises the limit of parallel requests after a successful request
+     */
+    public synchronized void onSuccess() {
+        concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+        windowCount++;
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= STATISTICS_WINDOW_MILLIS) {
+            sustainedRate = windowCount * 1000d / (now - windowStart);
+            windowStart = now;
+            windowCount = 0;
+        }
+    }
+
+    /**
+     * Halves the limit of parallel requests and pauses all requests after the URN service throttled a request
+     *
+     * @param retryAfterMillis time to wait as requested by the URN service, -1 if it did not specify one
+     */
+    public synchronized void onThrottle(long retryAfterMillis) {
+        throttledRequests++;
+        long now = System.currentTimeMillis();
+        // requests that were sent in parallel are throttled together, decrease only once for them
+        if (now - lastDecrease >= MIN_DECREASE_INTERVAL_MILLIS) {
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            lastDecrease = now;
+        }
+        pausedUntil = Math.max(pausedUntil, now + (retryAfterMillis >= 0 ? retryAfterMillis : DEFAULT_PAUSE_MILLIS));
+        tokens = 0;
+        notifyAll();
+    }
+
+    private double refillTokens() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, permitsPerSecond), tokens + (now - lastRefillNanos) / 1_000_000_000d * permitsPerSecond);
+        lastRefillNanos = now;
+        return tokens;
+    }
+
+    /**
+     * @return current limit of parallel requests
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (int) concurrencyLimit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getThrottledRequests() {
+        return throttledRequests;
+    }
+
+    /**
+     * @return successful requests per second, measured over the last complete statistics window
+     */
+    public synchronized double getSustainedRequestsPerSecond() {
+        return sustainedRate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return endpoint + ": " + String.format("%.2f", sustainedRate) + " requests/s, concurrency limit " + (int) concurrencyLimit + ", in flight "
+                + inFlight + ", requests " + requests + ", throttled " + throttledRequests;
+    }
+}
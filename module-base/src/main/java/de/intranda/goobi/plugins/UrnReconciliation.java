@@ -0,0 +1,371 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Compares the urn_table with the URN service, e.g. to find entries that were left without URN because the URN could not be written after its
+ * registration. Every entry is assigned to its element before its URN is registered. Entries whose registration is still running look the same, so
+ * the repair should not run while steps register new URNs. The table is read with a forward-only cursor, so that only the rows that are being checked
+ * are kept in memory. The URN service is asked with a bounded number of parallel requests and the rate limit of the configuration.
+ *
+ * Every row that needs attention is written to the report as a tab separated line. With repair enabled, entries without URN whose URN can be
+ * derived from their id (generation method increment) are completed if the URN service knows the URN and removed otherwise. URNs that are missing
+ * at the URN service are only reported, their urls are not known without the METS file.
+ */
+@Log4j2
+public class UrnReconciliation {
+
+    private static final String URN_TABLE_NAME = "urn_table";
+    private static final int PROGRESS_INTERVAL = 100000;
+    private static final String REPORT_HEADER = "urn_id\twerk_id\tstruktur_typ\turn\tstatus\taction\n";
+
+    /**
+     * result of the comparison of one row
+     */
+    public enum Status {
+        // the URN service knows the URN
+        OK,
+        // the registration is still waiting in the outbox
+        QUEUED,
+        // the row belongs to a block of reserved ids, either of a running step or left behind by a step that was aborted. Reserved rows never had
+        // a registration, a row is assigned to its element before its URN is registered.
+        RESERVED,
+        // the URN belongs to another namespace and is not checked
+        OTHER_NAMESPACE,
+        // the URN has a wrong checksum
+        INVALID_CHECKSUM,
+        // the URN is not known to the URN service
+        MISSING_AT_RESOLVER,
+        // the row has no URN, but the URN derived from its id is registered
+        NOT_STORED,
+        // the row has no URN and the URN derived from its id is not registered
+        ORPHANED,
+        // the row has no URN and the URN can not be derived from its id, because it was generated with a timestamp
+        UNVERIFIABLE,
+        // the URN service could not be asked
+        ERROR
+    }
+
+    private final UrnConfiguration configuration;
+    private final UrnRestClient client;
+    private final int parallelRequests;
+    private final String urnPrefix;
+
+    // repair the rows instead of only reporting them
+    @Setter
+    private boolean repair = false;
+    // first urn_id to check, to continue an interrupted run
+    @Setter
+    private int startId = 0;
+
+    /**
+     * @param configuration configuration with the namespace and the URN service
+     * @param parallelRequests maximum number of parallel requests to the URN service
+     */
+    public UrnReconciliation(UrnConfiguration configuration, int parallelRequests) {
+        this(configuration, configuration.createClient(), parallelRequests);
+    }
+
+    UrnReconciliation(UrnConfiguration configuration, UrnRestClient client, int parallelRequests) {
+        this.configuration = configuration;
+        this.client = client;
+        this.parallelRequests = Math.max(1, parallelRequests);
+        this.urnPrefix = configuration.getNamespace() + "-";
+    }
+
+    /**
+     * Checks all rows of the urn_table. The connections are taken from the goobi connection pool.
+     *
+     * @param report the rows that need attention are written to it
+     * @return number of rows by status
+     * @throws SQLException if the table could not be read
+     * @throws IOException if the report could not be written
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public Summary run(Writer report) throws SQLException, IOException, InterruptedException {
+        try (UrnDatabaseSession cursorSession = new UrnDatabaseSession(-1); UrnDatabaseSession repairSession = new UrnDatabaseSession(-1)) {
+            return run(cursorSession, repairSession, report);
+        }
+    }
+
+    /**
+     * Checks all rows of the urn_table
+     *
+     * @param cursorSession session that reads the table, its connection is blocked until all rows are read
+     * @param repairSession session for the repairs and the outbox
+     * @param report the rows that need attention are written to it
+     * @return number of rows by status
+     */
+    Summary run(UrnDatabaseSession cursorSession, UrnDatabaseSession repairSession, Writer report)
+            throws SQLException, IOException, InterruptedException {
+        log.info("URN PLUGIN: Starting reconciliation of " + urnPrefix + "* with " + configuration.getUri() + (repair ? ", repairing" : ""));
+        long start = System.currentTimeMillis();
+        Summary summary = new Summary();
+        ReportWriter reportWriter = new ReportWriter(report);
+        UrnOutbox outbox = null;
+        if (configuration.isOutbox()) {
+            UrnDatabaseSchema.ensureSchema(repairSession.getConnection());
+            outbox = new UrnOutbox(repairSession);
+        }
+        Checker checker = new Checker(repairSession, outbox, summary, reportWriter);
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelRequests);
+        // bounds the rows that are waiting for the URN service, the cursor is not read ahead any further
+        Semaphore inFlight = new Semaphore(parallelRequests * 2);
+        try {
+            PreparedStatement query = cursorSession.prepare("SELECT urn_id, werk_id, struktur_typ, urn FROM " + URN_TABLE_NAME
+                    + " WHERE urn_id >= ? ORDER BY urn_id", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // MySQL streams the rows one by one instead of reading the whole result into memory
+            query.setFetchSize(Integer.MIN_VALUE);
+            query.setInt(1, startId);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    Row row = new Row(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+                    if (summary.rows.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                        log.info("URN PLUGIN: Reconciliation checked " + summary.getRows() + " rows, last urn_id: " + row.urnId);
+                    }
+                    String candidate = classify(row, summary, reportWriter);
+                    if (candidate == null) {
+                        continue;
+                    }
+                    inFlight.acquire();
+                    executor.execute(() -> {
+                        try {
+                            checker.check(row, candidate);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+                executor.shutdownNow();
+            }
+        }
+        reportWriter.flush();
+        log.info("URN PLUGIN: Finished reconciliation of " + summary.getRows() + " rows in " + (System.currentTimeMillis() - start) / 1000 + " s: "
+                + summary);
+        return summary;
+    }
+
+    /**
+     * Helper method of run. Handles the rows that can be judged without the URN service.
+     *
+     * @return the URN to look up at the URN service or null if the row is finished
+     */
+    private String classify(Row row, Summary summary, ReportWriter report) throws IOException {
+        if (UrnIdBlockAllocator.RESERVED_MARKER.equals(row.structType)) {
+            summary.count(Status.RESERVED);
+            return null;
+        }
+        if (row.urn == null) {
+            if (configuration.getUrnGenerationMethod() != UrnGenerationMethod.INCREMENT) {
+                summary.count(Status.UNVERIFIABLE);
+                report.write(row, Status.UNVERIFIABLE, "none");
+                return null;
+            }
+            return UrnGenerator.buildUrn(configuration.getNamespace(), configuration.getInfix(), String.valueOf(row.urnId),
+                    configuration.isGenerateChecksum());
+        }
+        if (!row.urn.startsWith(urnPrefix)) {
+            summary.count(Status.OTHER_NAMESPACE);
+            return null;
+        }
+        if (configuration.isGenerateChecksum() && !UrnChecksum.isValidChecksum(row.urn)) {
+            summary.count(Status.INVALID_CHECKSUM);
+            report.write(row, Status.INVALID_CHECKSUM, "none");
+            return null;
+        }
+        return row.urn;
+    }
+
+    /**
+     * Checks the rows at the URN service and repairs them. Runs in the threads of the executor.
+     */
+    private class Checker {
+        private final UrnDatabaseSession repairSession;
+        private final UrnOutbox outbox;
+        private final Summary summary;
+        private final ReportWriter report;
+
+        private Checker(UrnDatabaseSession repairSession, UrnOutbox outbox, Summary summary, ReportWriter report) {
+            this.repairSession = repairSession;
+            this.outbox = outbox;
+            this.summary = summary;
+            this.report = report;
+        }
+
+        private void check(Row row, String urn) {
+            Status status;
+            String action = "none";
+            try {
+                boolean exists = client.urnExists(urn);
+                if (row.urn != null) {
+                    status = exists ? Status.OK : isQueued(urn) ? Status.QUEUED : Status.MISSING_AT_RESOLVER;
+                } else if (exists) {
+                    status = Status.NOT_STORED;
+                    action = repair ? repair(row, urn) : "none";
+                } else {
+                    status = Status.ORPHANED;
+                    action = repair ? repair(row, null) : "none";
+                }
+            } catch (IOException | RuntimeException | SQLException e) {
+                log.warn("URN PLUGIN: Reconciliation could not check the URN " + urn + " of urn_id " + row.urnId + ": " + e.getMessage());
+                status = Status.ERROR;
+                action = String.valueOf(e.getMessage());
+            }
+            summary.count(status);
+            if (status != Status.OK && status != Status.QUEUED) {
+                try {
+                    report.write(row, status, action);
+                } catch (IOException e) {
+                    log.error("URN PLUGIN: Reconciliation could not write the report", e);
+                }
+            }
+        }
+
+        private boolean isQueued(String urn) throws SQLException {
+            if (outbox == null) {
+                return false;
+            }
+            synchronized (repairSession) {
+                return outbox.isQueued(urn, configuration.getUri());
+            }
+        }
+
+        /**
+         * writes the registered URN into the row or removes the row if nobody registered its URN. Rows that got a URN in the meantime are not
+         * touched.
+         *
+         * @param urn the registered URN or null to remove the row
+         * @return the action for the report
+         */
+        private String repair(Row row, String urn) throws SQLException {
+            synchronized (repairSession) {
+                PreparedStatement statement;
+                if (urn != null) {
+                    statement = repairSession.prepare("UPDATE " + URN_TABLE_NAME + " SET urn=? WHERE urn_id=? AND urn IS NULL");
+                    statement.setString(1, urn);
+                    statement.setInt(2, row.urnId);
+                } else {
+                    statement = repairSession.prepare("DELETE FROM " + URN_TABLE_NAME + " WHERE urn_id=? AND urn IS NULL");
+                    statement.setInt(1, row.urnId);
+                }
+                if (statement.executeUpdate() == 0) {
+                    return "changed meanwhile";
+                }
+            }
+            if (urn != null) {
+                log.info("URN PLUGIN: Reconciliation wrote the registered URN " + urn + " to urn_id " + row.urnId);
+                return "urn written";
+            }
+            UrnTopmostCache.SHARED.invalidate(row.urnId);
+            log.info("URN PLUGIN: Reconciliation removed urn_id " + row.urnId + " without registered URN");
+            return "removed";
+        }
+    }
+
+    private static final class Row {
+        private final int urnId;
+        private final String workId;
+        private final String structType;
+        private final String urn;
+
+        private Row(int urnId, String workId, String structType, String urn) {
+            this.urnId = urnId;
+            this.workId = workId;
+            this.structType = structType;
+            this.urn = urn;
+        }
+    }
+
+    /**
+     * writes the lines of the report, shared by all threads
+     */
+    private static final class ReportWriter {
+        private final Writer out;
+        private boolean headerWritten = false;
+
+        private ReportWriter(Writer out) {
+            this.out = out;
+        }
+
+        private synchronized void write(Row row, Status status, String action) throws IOException {
+            if (!headerWritten) {
+                out.write(REPORT_HEADER);
+                headerWritten = true;
+            }
+            out.write(row.urnId + "\t" + clean(row.workId) + "\t" + clean(row.structType) + "\t" + clean(row.urn) + "\t" + status + "\t"
+                    + clean(action) + "\n");
+        }
+
+        private synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        private static String clean(String value) {
+            return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ');
+        }
+    }
+
+    /**
+     * number of checked rows by status
+     */
+    public static class Summary {
+        private final Map<Status, AtomicLong> counts = new EnumMap<>(Status.class);
+        private final AtomicLong rows = new AtomicLong();
+
+        private Summary() {
+            for (Status status : Status.values()) {
+                counts.put(status, new AtomicLong());
+            }
+        }
+
+        private void count(Status status) {
+            counts.get(status).incrementAndGet();
+        }
+
+        /**
+         * @return number of rows that were read
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * @param status a status
+         * @return number of rows with the status
+         */
+        public long getCount(Status status) {
+            return counts.get(status).get();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Status status : Status.values()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(status.name().toLowerCase()).append(": ").append(getCount(status));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage of the urn_ids and URNs that is used by the {@link UrnGenerator}. Every combination of werk_id and struktur_typ of an anchor or topmost
+ * element and every URN may exist only once. {@link UrnMySqlRepository} stores the entries in the urn_table of the Goobi database,
+ * {@link UrnInMemoryRepository} keeps them in the JVM for load tests, benchmarks and dry runs.
+ */
+public interface UrnRepository extends AutoCloseable {
+
+    /**
+     * Announces how many elements will probably need a new urn_id, so that the ids can be reserved in one block
+     *
+     * @param expectedElements number of elements that are neither anchor nor topmost and have no URN yet
+     */
+    default void setExpectedElements(int expectedElements) {
+    }
+
+    /**
+     * @param metrics recorder for the durations of the database requests
+     */
+    default void setMetrics(UrnMetrics.Recorder metrics) {
+    }
+
+    /**
+     * Prepares the storage for {@link #writeUrn(Urn, List)} with urls. Must be called before the first URN is allocated.
+     *
+     * @param apiUri URI of the URN service the registrations are queued for
+     * @throws SQLException if the outbox could not be created
+     */
+    void enableOutbox(String apiUri) throws SQLException;
+
+    /**
+     * Returns a new urn_id for an element that is neither anchor nor topmost. There may be several entries for the same werk_id and struktur_typ,
+     * the entry is assigned to its element when the URN is written.
+     *
+     * @return the new urn_id
+     * @throws SQLException if the id could not be allocated
+     */
+    int nextId() throws SQLException;
+
+    /**
+     * Assigns an entry from {@link #nextId()} to its element before its URN is registered, so that the {@link UrnReconciliation} can find the entry
+     * if the URN cannot be written after the registration. URNs that cannot be derived from the id of the entry are stored right away.
+     *
+     * @param urn the new entry with werk_id and struktur_typ of its element
+     * @param newUrn the URN that will be registered or null if it can be derived from the id
+     * @throws SQLException if the entry does not exist anymore or could not be updated
+     */
+    void assign(Urn urn, String newUrn) throws SQLException;
+
+    /**
+     * Returns the entry of an anchor or topmost element and creates it if it does not exist yet. Of several concurrent calls for the same element
+     * only one creates the entry, the others get the existing one.
+     *
+     * @param workID id of the work (ppn)
+     * @param structType name of the structure type
+     * @return the existing entry (oldEntry is true) or the new entry without URN
+     * @throws SQLException if the entry could not be read or created
+     * @throws UrnDatabaseException if the element has more than one entry
+     */
+    Urn allocateTopmost(String workID, String structType) throws SQLException, UrnDatabaseException;
+
+    /**
+     * Searches the entry of an anchor or topmost element
+     *
+     * @param workID id of the work (ppn)
+     * @param structType name of the structure type
+     * @return the entry or null if there is none
+     * @throws SQLException if the entry could not be read
+     * @throws UrnDatabaseException if the element has more than one entry
+     */
+    Urn findTopmost(String workID, String structType) throws SQLException, UrnDatabaseException;
+
+    /**
+     * Checks if a URN is already stored
+     *
+     * @param urn the URN
+     * @return true if an entry has this URN
+     * @throws SQLException if the entries could not be read
+     */
+    boolean containsUrn(String urn) throws SQLException;
+
+    /**
+     * Writes the URN of a new entry. Entries of elements that are neither anchor nor topmost are assigned to their element at the same time. If
+     * urls are given, the registration is queued for the outbox together with the URN.
+     *
+     * @param urn the new entry with its URN
+     * @param queuedUrls urls of the queued registration or null if the URN was registered directly
+     * @return true if the URN was written, false if the entry does not exist anymore or the URN is already used by another entry
+     */
+    boolean writeUrn(Urn urn, List<String> queuedUrls);
+
+    /**
+     * Discards the unfinished changes of the current element and removes the entry
+     *
+     * @param urnId id of the entry
+     * @return true if the entry was removed
+     */
+    boolean delete(int urnId);
+
+    /**
+     * discards the unfinished changes of the current element
+     */
+    void rollback();
+
+    /**
+     * Discards the unfinished changes and releases the urn_ids that were allocated but not used. Must be called at the end of every run.
+     */
+    @Override
+    void close();
+}
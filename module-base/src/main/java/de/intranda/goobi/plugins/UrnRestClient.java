@@ -2,36 +2,53 @@
 package de.intranda.goobi.plugins;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
-import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.entity.ContentType;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
-import de.intranda.goobi.plugins.messages.UrlListMessage;
-import de.intranda.goobi.plugins.messages.UrnCreationMessage;
+import de.intranda.goobi.plugins.UrnHttpClientRegistry.UrnHttpClient;
+import de.intranda.goobi.plugins.messages.UrnJsonCodec;
 import de.intranda.goobi.plugins.responsehandler.CreateResponseHandler;
+import de.intranda.goobi.plugins.responsehandler.LookupResponseHandler;
 import de.intranda.goobi.plugins.responsehandler.PatchResponseHandler;
+import de.intranda.goobi.plugins.responsehandler.UrnHttpStatusException;
 import de.sub.goobi.config.ConfigurationHelper;
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
 public class UrnRestClient {
 
+    private static final int DEFAULT_THROTTLE_RETRIES = 5;
+    private static final long MAX_RETRY_AFTER_MILLIS = 300000;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final int DEFAULT_BREAKER_FAILURES = 5;
+    private static final long DEFAULT_BREAKER_OPEN_MILLIS = 30000;
+
     private String uri;
-    private String auth;
-    private Gson gson;
-    private boolean useProxy = false;
-    private HttpHost proxy;
+    private UrnHttpClient client;
+    private UrnRateLimiter rateLimiter;
+    private int throttleRetries = DEFAULT_THROTTLE_RETRIES;
+    private UrnCircuitBreaker circuitBreaker;
+    private RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS)
+            .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS)
+            .build();
 
     /**
      * @param Uri URL of the URN service
@@ -40,24 +57,185 @@ public class UrnRestClient {
      * @param password Password of the User
      */
     public UrnRestClient(String uri, String namespace, String user, String password) {
-        this.auth = Base64.getEncoder().encodeToString((user.trim() + ":" + password.trim()).getBytes());
+        this(uri, namespace, user, password, 0);
+    }
+
+    /**
+     * @param Uri URL of the URN service
+     * @param namespace namespace in which URNs are created
+     * @param user Username of the API User
+     * @param password Password of the User
+     * @param maxConnectionsPerRoute maximum number of parallel connections to the URN service, values &lt; 1 use the default
+     */
+    public UrnRestClient(String uri, String namespace, String user, String password, int maxConnectionsPerRoute) {
+        this(uri, namespace, user, password, maxConnectionsPerRoute, findProxy(uri));
+    }
+
+    /**
+     * creates a client that uses the given proxy instead of the proxy of the goobi configuration
+     * 
+     * @param Uri URL of the URN service
+     * @param namespace namespace in which URNs are created
+     * @param user Username of the API User
+     * @param password Password of the User
+     * @param maxConnectionsPerRoute maximum number of parallel connections to the URN service, values &lt; 1 use the default
+     * @param proxy the proxy or null for a direct connection
+     */
+    UrnRestClient(String uri, String namespace, String user, String password, int maxConnectionsPerRoute, HttpHost proxy) {
+        String auth = Base64.getEncoder().encodeToString((user.trim() + ":" + password.trim()).getBytes());
         if (!uri.startsWith("https")) {
             throw new IllegalArgumentException("Bad URL - only https is permitted");
         }
         this.uri = (!uri.endsWith("/")) ? uri + "/" : uri;
-        gson = new Gson();
+        client = UrnHttpClientRegistry.getClient(this.uri, "Basic " + auth, proxy, maxConnectionsPerRoute);
+        // the limiter keeps the settings of the clients that configured it
+        rateLimiter = UrnRateLimiter.getInstance(this.uri, client.getMaxConnectionsPerRoute());
+        // the breaker with the default settings, other breakers of the endpoint are not affected
+        circuitBreaker = UrnCircuitBreaker.getInstance(this.uri, DEFAULT_BREAKER_FAILURES, DEFAULT_BREAKER_OPEN_MILLIS);
+    }
+
+    /**
+     * Helper method of the constructor. Returns the proxy of the goobi configuration, unless the URN service is on the whitelist.
+     * 
+     * @param uri URL of the URN service
+     * @return the proxy or null
+     */
+    private static HttpHost findProxy(String uri) {
         ConfigurationHelper cHelper = ConfigurationHelper.getInstance();
-        if (cHelper.isUseProxy()) {
+        if (!cHelper.isUseProxy()) {
+            return null;
+        }
+        try {
+            URL url = new URL(uri);
+            if (!cHelper.isProxyWhitelisted(url)) {
+                return new HttpHost(cHelper.getProxyUrl(), cHelper.getProxyPort());
+            }
+            log.debug("URN PLUGIN: url was on proxy whitelist, no proxy used: " + uri);
+        } catch (MalformedURLException e) {
+            log.debug("URN PLUGIN: could not convert into URL: {} ", uri);
+        }
+        return null;
+    }
+
+    /**
+     * Configures the rate limit that is shared by all clients of the same URN service
+     * 
+     * @param requestsPerSecond maximum number of requests per second, 0 for no limit
+     * @param throttleRetries number of retries of a request the URN service answered with 429 or 503
+     */
+    public void configureRateLimit(double requestsPerSecond, int throttleRetries) {
+        rateLimiter.configure(requestsPerSecond, client.getMaxConnectionsPerRoute());
+        this.throttleRetries = Math.max(0, throttleRetries);
+    }
+
+    /**
+     * Configures the timeouts of the requests of this client. Values &lt; 1 keep the default.
+     *
+     * @param connectTimeoutMillis maximum time in milliseconds to establish a connection to the URN service
+     * @param socketTimeoutMillis maximum time in milliseconds to wait for data from the URN service
+     * @param connectionRequestTimeoutMillis maximum time in milliseconds to wait for a free connection of the shared pool
+     */
+    public void configureTimeouts(int connectTimeoutMillis, int socketTimeoutMillis, int connectionRequestTimeoutMillis) {
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis > 0 ? connectTimeoutMillis : DEFAULT_CONNECT_TIMEOUT_MILLIS)
+                .setSocketTimeout(socketTimeoutMillis > 0 ? socketTimeoutMillis : DEFAULT_SOCKET_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis > 0 ? connectionRequestTimeoutMillis
+                        : DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS)
+                .build();
+    }
+
+    /**
+     * @return maximum time in milliseconds a single attempt of a request may take, the sum of the three timeouts
+     */
+    public long getRequestTimeoutMillis() {
+        return (long) requestConfig.getConnectionRequestTimeout() + requestConfig.getConnectTimeout() + requestConfig.getSocketTimeout();
+    }
+
+    /**
+     * Configures the circuit breaker that is shared by all clients of the same URN service with the same settings
+     *
+     * @param failureThreshold number of failed requests in a row after which all requests are rejected, 0 disables the breaker
+     * @param openMillis time in milliseconds all requests are rejected before a single request probes the URN service again
+     */
+    public void configureCircuitBreaker(int failureThreshold, long openMillis) {
+        this.circuitBreaker = UrnCircuitBreaker.getInstance(this.uri, failureThreshold, openMillis);
+    }
+
+    /**
+     * @return the circuit breaker of the URN service this client uses
+     */
+    public UrnCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the rate limiter of the URN service this client uses
+     */
+    public UrnRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Helper method of registerUrn, replaceUrls and urnExists. Sends the request as soon as the rate limiter allows it. If the URN service throttles
+     * the request, it is sent again after the time requested by the Retry-After header, unless the thread was interrupted, e.g. because the run was
+     * aborted. While the circuit breaker is open, the request is rejected without waiting.
+     * 
+     * @param request the request
+     * @param handler handler for the response
+     * @return result of the handler
+     * @throws UrnCircuitOpenException if the circuit breaker of the URN service is open
+     * @throws IOException if the request failed or was throttled too often
+     */
+    private <T> T execute(HttpRequestBase request, ResponseHandler<T> handler) throws IOException {
+        request.setConfig(requestConfig);
+        for (int attempt = 0;; attempt++) {
+            circuitBreaker.acquire();
             try {
-                URL url = new URL(this.uri);
-                if (!cHelper.isProxyWhitelisted(url)) {
-                    this.useProxy = cHelper.isUseProxy();
-                    this.proxy = new HttpHost(cHelper.getProxyUrl(), cHelper.getProxyPort());
+                rateLimiter.acquire();
+            } catch (InterruptedException e) {
+                circuitBreaker.onCancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("URN PLUGIN: interrupted while waiting for the rate limit of " + uri);
+            }
+            // null if the request neither proves nor disproves that the URN service is available
+            Boolean available = Boolean.FALSE;
+            try {
+                T result = client.getHttpClient().execute(request, handler);
+                available = Boolean.TRUE;
+                rateLimiter.onSuccess();
+                return result;
+            } catch (UrnHttpStatusException e) {
+                // server errors count as failures for the circuit breaker, all other answers show that the URN service is available
+                available = e.isThrottled() || e.getStatus() < 500;
+                if (!e.isThrottled()) {
+                    throw e;
+                }
+                rateLimiter.onThrottle(e.getRetryAfterMillis());
+                // a throttled request was not processed, an aborted run does not wait for another attempt
+                if (attempt >= throttleRetries || e.getRetryAfterMillis() > MAX_RETRY_AFTER_MILLIS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.debug("URN PLUGIN: request was throttled by the URN service, will be sent again: " + request.getURI());
+                request.reset();
+            } catch (InterruptedIOException e) {
+                // timeouts are failures, interruptions of the thread are not
+                if (Thread.currentThread().isInterrupted()) {
+                    available = null;
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                // the response could not be read, but the URN service answered
+                available = Boolean.TRUE;
+                throw e;
+            } finally {
+                rateLimiter.release();
+                if (available == null) {
+                    circuitBreaker.onCancel();
+                } else if (available) {
+                    circuitBreaker.onSuccess();
                 } else {
-                    log.debug("URN PLUGIN: url was on proxy whitelist, no proxy used: " + this.uri);
+                    circuitBreaker.onFailure();
                 }
-            } catch (MalformedURLException e) {
-                log.debug("URN PLUGIN: could not convert into URL: {} ", this.uri);
             }
         }
     }
@@ -72,15 +250,9 @@ public class UrnRestClient {
      * @throws InterruptedException
      */
     public String registerUrn(String urn, List<String> urls) throws IOException, JsonSyntaxException {
-
-        Request request = Request.Post(uri + "urns");
-        request = addHeadersAndProxy(request);
-
-        return request.addHeader("Content-Type", "application/json")
-                .bodyString(createUrnBodyString(urn, urls), ContentType.APPLICATION_JSON)
-                .execute()
-                .handleResponse(new CreateResponseHandler());
-
+        HttpPost request = new HttpPost(uri + "urns");
+        request.setEntity(UrnJsonCodec.createUrnEntity(urn, urls));
+        return execute(request, new CreateResponseHandler());
     }
 
     /**
@@ -95,67 +267,43 @@ public class UrnRestClient {
      */
     public boolean replaceUrls(String urn, List<String> urls)
             throws IOException, IllegalArgumentException, JsonSyntaxException {
-
-        Request request = Request.Patch(uri + "urns/urn/" + urn + "/" + "my-urls");
-        request = addHeadersAndProxy(request);
-        String response = request.addHeader("Content-Type", "application/json")
-                .bodyString(replaceUrlsBodyString(urn, urls), ContentType.APPLICATION_JSON)
-                .execute()
-                .handleResponse(new PatchResponseHandler());
+        HttpPatch request = new HttpPatch(uri + "urns/urn/" + urn + "/" + "my-urls");
+        request.setEntity(UrnJsonCodec.replaceUrlsEntity(urn, urls));
+        String response = execute(request, new PatchResponseHandler());
         return "success".equals(response);
     }
 
     /**
-     * Helper method of replaceUrls. It creates a JSONArray String of Objects with the Parameter url
+     * Checks if the URN is known to the URN service
      * 
-     * @param urls urls that shall be added to the JSONArray
-     * @return String with JSONarray
+     * @param urn the URN
+     * @return true if the URN exists, false if the URN service does not know it
+     * @throws IOException if the request failed
      */
-    private String replaceUrlsBodyString(String urn, List<String> urls) {
-        List<UrlListMessage> ulm = createUrlList(urn, urls);
-        return gson.toJson(ulm);
+    public boolean urnExists(String urn) throws IOException {
+        HttpGet request = new HttpGet(uri + "urns/urn/" + urn);
+        return LookupResponseHandler.FOUND.equals(execute(request, new LookupResponseHandler()));
     }
 
     /**
-     * Helper method of replaceUrlsBodyString and createUrnBodyString
+     * Creates the body of the request of replaceUrls as string. The request itself writes the body directly into the connection.
      * 
-     * @param urls urls to put in the array
-     * @return arrayBuilder object
+     * @param urls urls that shall be added to the JSONArray
+     * @return String with JSONarray
      */
-    private List<UrlListMessage> createUrlList(String urn, List<String> urls) {
-        List<UrlListMessage> ulm = new ArrayList<>();
-        for (String url : urls) {
-            ulm.add(new UrlListMessage().setUrl(url.replace("{pi.urn}", urn)));
-        }
-        return ulm;
+    static String replaceUrlsBodyString(String urn, List<String> urls) {
+        return UrnJsonCodec.replaceUrlsJson(urn, urls);
     }
 
     /**
-     * Helper method of createUrn. Creates JSON-String needed to create an URN
+     * Creates the body of the request of registerUrn as string. The request itself writes the body directly into the connection.
      *
      * @param urn
      * @param urls
      * @return
      */
-    private String createUrnBodyString(String urn, List<String> urls) {
-        UrnCreationMessage createArk = new UrnCreationMessage();
-        createArk.setUrn(urn);
-        createArk.setUrls(createUrlList(urn, urls));
-        return gson.toJson(createArk);
-    }
-
-    /**
-     * Helper method that adds Authorization- and Accept- Header to a given Request
-     * 
-     * @param request Request Object which needs Authorization and Accept Headers
-     * @return returns the Request with Authorization and Accept Header
-     */
-    private Request addHeadersAndProxy(Request request) {
-        if (this.useProxy) {
-            return request.addHeader(HttpHeaders.AUTHORIZATION, "Basic " + auth).addHeader("Accept", "application/json").viaProxy(this.proxy);
-        } else {
-            return request.addHeader(HttpHeaders.AUTHORIZATION, "Basic " + auth).addHeader("Accept", "application/json");
-        }
+    static String createUrnBodyString(String urn, List<String> urls) {
+        return UrnJsonCodec.createUrnJson(urn, urls);
     }
 
 }
@@ -1,6 +1,7 @@
 package de.intranda.goobi.plugins;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 
@@ -23,13 +24,33 @@ import java.util.ArrayList;
  *
  */
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
 
 import jakarta.json.JsonException;
 
-import org.apache.commons.configuration.SubnodeConfiguration;
+import org.goobi.beans.Process;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginGuiType;
@@ -41,11 +62,11 @@ import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 import com.google.gson.JsonSyntaxException;
 
 import de.sub.goobi.config.ConfigPlugins;
-import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.VariableReplacer;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.SwapException;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 import ugh.dl.DocStruct;
@@ -64,13 +85,30 @@ import ugh.exceptions.WriteException;
 public class UrnStepPlugin implements IStepPluginVersion2 {
 
     private static final long serialVersionUID = -4947451667446416764L;
+    private static final int ROLE_PPN = 1;
+    private static final int ROLE_METS_URN = 2;
+    private static final int ROLE_MODS_URN = 4;
+    // placeholders of the VariableReplacer that read the metadata of the document, e.g. {meta.CatalogIDDigital} or $(metas.topstruct.Author)
+    private static final Pattern METADATA_PLACEHOLDER = Pattern.compile("\\$?[{(]metas?\\.");
+    static final String PLUGIN_TITLE = "intranda_step_urn";
+
+    static {
+        // registrations that were queued before a restart are sent without waiting for the next step
+        UrnOutboxDispatcher.startConfigured(PLUGIN_TITLE);
+    }
+
     @Getter
-    private String title = "intranda_step_urn";
+    private String title = PLUGIN_TITLE;
     @Getter
     private Step step;
     private Prefs prefs;
     private String ppn;
     private MetadataType ppntype;
+    private MetadataType metsUrnMetadataType;
+    private MetadataType modsUrnMetadataType;
+    // roles of the metadata types and information about the structure types, cached by identity during a run
+    private final transient Map<MetadataType, Integer> metadataRoles = new IdentityHashMap<>();
+    private final transient Map<DocStructType, TypeInfo> typeInfos = new IdentityHashMap<>();
 
     private String metsUrnType;
     private String modsUrnType;
@@ -79,11 +117,12 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
     private boolean setWorkUrn;
     private boolean setAnchorUrn;
     private boolean successful = true;
+    // true if metadata was added to the METS file during the run
+    private boolean metadataChanged = false;
 
-    private String uri;
+    private transient Process process;
+    private transient UrnConfiguration configuration;
     private String namespace;
-    private String apiUser;
-    private String apiPassword;
     private String returnPath;
     private String publicationUrl;
     private String infix;
@@ -91,45 +130,104 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
     private String[] allowedTypes;
     private transient UrnRestClient urnClient;
     private transient UrnGenerator urnGenerator;
+    // storage of the entries instead of the urn_table, e.g. for tests
+    private transient UrnRepository repository;
+    private transient UrnUrlFingerprints urlFingerprints;
+    private transient UrnCheckpoint checkpoint;
+    // URNs registered by an earlier run that failed before the METS file was written, by key of their element
+    private transient Map<String, String> checkpointedUrns = Collections.emptyMap();
+    // shared by the urn_table, the checkpoint, the url fingerprints and the outbox, so that a run holds one pooled connection
+    private transient UrnDatabaseSession session;
     private transient Fileformat ff;
     private ArrayList<String> urls;
     private UrnGenerationMethod urnGenerationMethod = null;
     private int processId = -1;
+    private int idBlockSize;
+    private int parallelRequests;
+    private boolean forceUrlUpdate;
+    private boolean outbox;
+    @Getter
+    private String errorMessage;
+    private transient UrnMetrics.Recorder metrics;
+    private transient UrnJournal journal;
+    private transient ExecutorService registrationExecutor;
+    private transient Deque<PendingRequest> pendingRequests;
 
     @Override
     public void initialize(Step step, String returnPath) {
         this.returnPath = returnPath;
         this.step = step;
-        this.processId = step.getProcessId();
 
         // read parameters from correct block in configuration file
-        SubnodeConfiguration myconfig = ConfigPlugins.getProjectAndStepConfig(title, step);
-        uri = myconfig.getString("apiUri", "https://api.nbn-resolving.org/v2/");
-        namespace = myconfig.getString("namespace", "urn:nbn:de:gbv:NN");
-        apiUser = myconfig.getString("apiUser", "user");
-        apiPassword = myconfig.getString("apiPassword", "password");
-
-        metsUrnType = myconfig.getString("typeNameMets", "_urn");
-        modsUrnType = myconfig.getString("typeNameMods", "URN");
-
-        setmodsUrn = myconfig.getBoolean("createModsUrns", false);
-        setWorkUrn = myconfig.getBoolean("work", true);
-        setAnchorUrn = myconfig.getBoolean("anchor", false);
-        generateChecksum = myconfig.getBoolean("checksum", false);
-        String urnGenerationMethodString = myconfig.getString("generationMethod", "increment");
-        for (UrnGenerationMethod generationMethod : UrnGenerationMethod.values()) {
-            if (urnGenerationMethodString.equalsIgnoreCase(generationMethod.toString())) {
-                urnGenerationMethod = generationMethod;
-            }
-        }
-
-        // read Array with allowed elements from configuration
-        allowedTypes = myconfig.getStringArray("allowed/type");
-        publicationUrl = myconfig.getString("url", "https://viewer.example.org/viewer/resolver?urn={pi.urn}");
-        infix = myconfig.getString("infix", null);
+        configure(step.getProzess(), new UrnConfiguration(ConfigPlugins.getProjectAndStepConfig(title, step)));
         log.info("URN PLUGIN: Initialized - ProcessID:" + this.processId);
     }
 
+    /**
+     * Prepares a run for a process outside of a workflow step, as used by the {@link UrnBatchRunner}. The client of the URN service and the
+     * preferences of the ruleset are shared by all processes of a batch.
+     * 
+     * @param process the process
+     * @param configuration the parsed configuration
+     * @param client client of the URN service
+     * @param prefs preferences of the ruleset of the process, null to load them only if the METS file has to be parsed
+     */
+    void initialize(Process process, UrnConfiguration configuration, UrnRestClient client, Prefs prefs) {
+        configure(process, configuration);
+        this.urnClient = client;
+        this.prefs = prefs;
+        if (prefs != null) {
+            resolveMetadataTypes();
+        }
+    }
+
+    /**
+     * @param urlFingerprints store of the registered urls to use in the next run instead of the database table
+     */
+    void setUrlFingerprints(UrnUrlFingerprints urlFingerprints) {
+        this.urlFingerprints = urlFingerprints;
+    }
+
+    /**
+     * @param repository storage of the entries to use in the next run instead of the urn_table
+     */
+    void setRepository(UrnRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param checkpoint checkpoint to use in the next run instead of the database table
+     */
+    void setCheckpoint(UrnCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    private void configure(Process process, UrnConfiguration configuration) {
+        this.process = process;
+        this.processId = process.getId();
+        this.configuration = configuration;
+
+        namespace = configuration.getNamespace();
+
+        metsUrnType = configuration.getMetsUrnType();
+        modsUrnType = configuration.getModsUrnType();
+
+        setmodsUrn = configuration.isSetmodsUrn();
+        setWorkUrn = configuration.isSetWorkUrn();
+        setAnchorUrn = configuration.isSetAnchorUrn();
+        generateChecksum = configuration.isGenerateChecksum();
+        idBlockSize = configuration.getIdBlockSize();
+        parallelRequests = configuration.getParallelRequests();
+        forceUrlUpdate = configuration.isForceUrlUpdate();
+        outbox = configuration.isOutbox();
+        urnGenerationMethod = configuration.getUrnGenerationMethod();
+        allowedTypes = configuration.getAllowedTypes();
+        publicationUrl = configuration.getPublicationUrl();
+        infix = configuration.getInfix();
+        metrics = UrnMetrics.getInstance().recorder(process.getProjekt() == null ? null : process.getProjekt().getTitel(), configuration.getUri());
+        journal = new UrnJournal(processId, configuration.getJournalVerbosity());
+    }
+
     private void log(String message, LogType logType) {
 
         String logmessage = "URN PLUGIN: " + message;
@@ -143,9 +241,15 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
             default:
                 break;
         }
-        if (this.processId > 0) {
-            Helper.addMessageToProcessJournal(step.getProcessId(), logType, logmessage);
-        }
+        journal.add(logmessage, logType);
+    }
+
+    /**
+     * counts an element for the metrics and the summary in the journal
+     */
+    private void count(UrnMetrics.Outcome outcome) {
+        metrics.count(outcome);
+        journal.count(outcome);
     }
 
     @Override
@@ -189,21 +293,34 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
         return ret != PluginReturnValue.ERROR;
     }
 
-    private void setUrn(DocStruct ds) throws JsonSyntaxException, IllegalArgumentException, MetadataTypeNotAllowedException,
+    /**
+     * Registers or updates the URNs of the element and its children
+     * 
+     * @param ds DocStruct element where the traversal starts
+     */
+    void setUrn(DocStruct ds) throws JsonSyntaxException, IllegalArgumentException, MetadataTypeNotAllowedException,
+            WriteException, PreferencesException, IOException, InterruptedException, SwapException, DAOException, SQLException, UrnDatabaseException {
+        setUrn(ds, "0");
+    }
+
+    /**
+     * Helper method of setUrn
+     * 
+     * @param ds the element
+     * @param path position of the element in the logical structure, the indexes of the element and its parents separated by slashes
+     */
+    private void setUrn(DocStruct ds, String path) throws JsonSyntaxException, IllegalArgumentException, MetadataTypeNotAllowedException,
             WriteException, PreferencesException, IOException, InterruptedException, SwapException, DAOException, SQLException, UrnDatabaseException {
 
+        ElementScan scan = scanMetadata(ds);
         // always look for a ppn
-        if (ds.getAllMetadata() != null && !ds.getAllMetadata().isEmpty()) {
-            for (Metadata m : ds.getAllMetadata()) {
-                if (m.getType().equals(ppntype)) {
-                    ppn = m.getValue();
-                }
-            }
+        if (scan.ppn != null) {
+            ppn = scan.ppn;
         }
 
-        if (!isAllowedElement(ds.getType()) || "boundbook".equals(ds.getType().getName())) {
+        if (!getTypeInfo(ds.getType()).eligible) {
             // do nothing, maybe we need other types without urn too?
-        } else if (!replaceUrlsOrAddUrn(ds)) {
+        } else if (!replaceUrlsOrAddUrn(ds, scan, path + "|" + ds.getType().getName())) {
             successful = false;
         }
 
@@ -213,11 +330,37 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
         if (allowedTypes.length > 0 || ds.getType().isAnchor()) {
             List<DocStruct> dsList = ds.getAllChildren();
             if (dsList != null && !dsList.isEmpty()) {
+                for (int i = 0; i < dsList.size(); i++) {
+                    setUrn(dsList.get(i), path + "/" + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * counts the elements below the anchor and topmost level that will probably need a new URN, so that their ids can be reserved in one block
+     * 
+     * @param ds DocStruct element where the counting starts
+     * @return number of elements without URN
+     */
+    private int countElementsWithoutUrn(DocStruct ds) {
+        int count = 0;
+        DocStructType type = ds.getType();
+        if (getTypeInfo(type).eligible && !type.isAnchor() && !type.isTopmost()) {
+            ElementScan scan = scanMetadata(ds);
+            if (scan.metsUrn == null && scan.modsUrn == null) {
+                count++;
+            }
+        }
+        if (allowedTypes.length > 0 || type.isAnchor()) {
+            List<DocStruct> dsList = ds.getAllChildren();
+            if (dsList != null) {
                 for (DocStruct s : dsList) {
-                    setUrn(s);
+                    count += countElementsWithoutUrn(s);
                 }
             }
         }
+        return count;
     }
 
     /**
@@ -242,142 +385,177 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
     }
 
     /**
-     * Returns true if the DocStruct-element allows to write modsUrns
+     * Resolves the metadata types the plugin reads and writes. Must be called once the preferences of the run are known.
+     */
+    private void resolveMetadataTypes() {
+        ppntype = prefs.getMetadataTypeByName("CatalogIDDigital");
+        metsUrnMetadataType = prefs.getMetadataTypeByName(metsUrnType);
+        modsUrnMetadataType = prefs.getMetadataTypeByName(modsUrnType);
+        metadataRoles.clear();
+        typeInfos.clear();
+    }
+
+    /**
+     * Returns what the given metadata type is used for. The result is cached per type instance, so that every metadata is only compared by
+     * identity. The name is compared only once per type, because the types of the METS file may come from another instance of the ruleset.
      * 
-     * @param ds
-     * @return
+     * @param type the metadata type
+     * @return combination of {@link #ROLE_PPN}, {@link #ROLE_METS_URN} and {@link #ROLE_MODS_URN}
      */
-    private boolean isAllowedUrn(DocStruct ds, String urnType) {
-        for (MetadataType metadataType : ds.getType().getAllMetadataTypes()) {
-            if (metadataType.getName().equals(urnType)) {
-                return true;
+    private int getMetadataRole(MetadataType type) {
+        if (type == null) {
+            return 0;
+        }
+        Integer role = metadataRoles.get(type);
+        if (role == null) {
+            int value = 0;
+            if (ppntype != null && ppntype.getName().equals(type.getName())) {
+                value |= ROLE_PPN;
+            }
+            if (type.getName().equals(metsUrnType)) {
+                value |= ROLE_METS_URN;
+            }
+            if (type.getName().equals(modsUrnType)) {
+                value |= ROLE_MODS_URN;
             }
+            role = value;
+            metadataRoles.put(type, role);
         }
-        return false;
+        return role;
+    }
+
+    /**
+     * Reads the PPN and the existing URNs of the element in one pass over its metadata
+     * 
+     * @param ds the element
+     * @return the values found
+     */
+    private ElementScan scanMetadata(DocStruct ds) {
+        ElementScan scan = new ElementScan();
+        List<Metadata> allMetadata = ds.getAllMetadata();
+        if (allMetadata == null) {
+            return scan;
+        }
+        for (Metadata md : allMetadata) {
+            int role = getMetadataRole(md.getType());
+            if (role == 0) {
+                continue;
+            }
+            if ((role & ROLE_PPN) != 0) {
+                // the last PPN wins
+                scan.ppn = md.getValue();
+            }
+            if ((role & ROLE_METS_URN) != 0 && scan.metsUrn == null) {
+                scan.metsUrn = md.getValue();
+            }
+            if ((role & ROLE_MODS_URN) != 0 && scan.modsUrn == null) {
+                scan.modsUrn = md.getValue();
+            }
+        }
+        return scan;
     }
 
     /**
-     * tries to find existing URN of the given Element
+     * Returns whether the elements of the given type get a URN and which URN metadata they allow. The result is cached per type.
      * 
-     * @param logical DocStruct element that will be searched
-     * @param urnType type name of the URN
-     * @return
+     * @param type the structure type
+     * @return the cached information
      */
-    private String findExistingUrn(DocStruct logical, String urnType) {
-        if (logical.getAllMetadata() != null) {
-            for (Metadata md : logical.getAllMetadata()) {
-                if (md.getType().getName().equals(urnType)) {
-                    return md.getValue();
+    private TypeInfo getTypeInfo(DocStructType type) {
+        TypeInfo info = typeInfos.get(type);
+        if (info == null) {
+            info = new TypeInfo();
+            info.eligible = isAllowedElement(type) && !"boundbook".equals(type.getName());
+            List<MetadataType> metadataTypes = type.getAllMetadataTypes();
+            if (metadataTypes != null) {
+                for (MetadataType metadataType : metadataTypes) {
+                    int role = getMetadataRole(metadataType);
+                    info.metsUrnAllowed |= (role & ROLE_METS_URN) != 0;
+                    info.modsUrnAllowed |= (role & ROLE_MODS_URN) != 0;
                 }
             }
+            typeInfos.put(type, info);
         }
-        return null;
+        return info;
     }
 
-    private boolean replaceUrlsOrAddUrn(DocStruct logical) throws JsonSyntaxException, IllegalArgumentException, MetadataTypeNotAllowedException,
-            IOException, InterruptedException, WriteException, PreferencesException, SwapException, SQLException, UrnDatabaseException {
+    /**
+     * @param logical the element
+     * @param scan the values of the element
+     * @param elementKey position and type of the element, identifies it in the {@link UrnCheckpoint}
+     * @return false if the URN could not be registered or updated
+     */
+    private boolean replaceUrlsOrAddUrn(DocStruct logical, ElementScan scan, String elementKey) throws JsonSyntaxException, IllegalArgumentException,
+            MetadataTypeNotAllowedException, IOException, InterruptedException, WriteException, PreferencesException, SwapException, SQLException,
+            UrnDatabaseException {
         boolean foundExistingUrn = false;
         boolean replaceSuccessful = false;
-        String metsUrn = findExistingUrn(logical, metsUrnType);
-        String modsUrn = findExistingUrn(logical, modsUrnType);
+        String metsUrn = scan.metsUrn;
+        String modsUrn = scan.modsUrn;
 
         if (modsUrn != null && metsUrn == null) {
             foundExistingUrn = true;
-            Metadata md = new Metadata(prefs.getMetadataTypeByName(metsUrnType));
+            Metadata md = new Metadata(metsUrnMetadataType);
             md.setValue(modsUrn);
             logical.addMetadata(md);
+            metadataChanged = true;
             replaceSuccessful = true;
+            count(UrnMetrics.Outcome.UPDATED);
             log("Found MODS-URN, copy value to METS", LogType.INFO);
         }
 
         if (metsUrn != null) {
             foundExistingUrn = true;
-            if (modsUrn != null && !metsUrn.equals(modsUrn)) {
-                log("There were different values for METS and MODS URN for the same Element", LogType.INFO);
-            }
-            if (metsUrn.startsWith(namespace)) {
-                replaceSuccessful = urnClient.replaceUrls(metsUrn, urls);
-
-                if (!replaceSuccessful) {
-                    log("URN: " + metsUrn + " could not be updated", LogType.ERROR);
-                } else {
-                    log("URN: " + metsUrn + " was updated successfully", LogType.DEBUG);
-                }
-            } else {
-                replaceSuccessful = true;
-                log("URN: " + metsUrn + "is not part of the namespace and will not be updated", LogType.INFO);
-            }
-
+            replaceUrls(logical, metsUrn, modsUrn);
+            replaceSuccessful = true;
         }
 
         // if no URN found yet register a new one
         if (!foundExistingUrn) {
-            boolean modsUrnAllowed = isAllowedUrn(logical, modsUrnType);
-            boolean metsUrnAllowed = isAllowedUrn(logical, metsUrnType);
-
-            if (metsUrnAllowed || (modsUrnAllowed && setmodsUrn)) {
-                Metadata md = new Metadata(prefs.getMetadataTypeByName(metsUrnType));
+            TypeInfo typeInfo = getTypeInfo(logical.getType());
+            boolean modsUrnAllowed = typeInfo.modsUrnAllowed;
+            boolean metsUrnAllowed = typeInfo.metsUrnAllowed;
 
-                String myNewUrn;
+            String resumedUrn = checkpointedUrns.get(elementKey);
+            if (resumedUrn != null && (metsUrnAllowed || (modsUrnAllowed && setmodsUrn))) {
+                // the URN is registered and in the database already, only the METS file was not written
+                addUrnMetadata(logical, resumedUrn, metsUrnAllowed, modsUrnAllowed);
+                count(UrnMetrics.Outcome.RESUMED);
+                log("URN: " + resumedUrn + " of an earlier run was reused", LogType.INFO);
+                replaceSuccessful = true;
+            } else if (metsUrnAllowed || (modsUrnAllowed && setmodsUrn)) {
+                boolean topmost = logical.getType().isAnchor() || logical.getType().isTopmost();
+                if (topmost) {
+                    // a new entry of an anchor or topmost element stays in an open transaction until its URN is written, no other element may be
+                    // finished or reserve ids in the meantime
+                    completePendingRequests();
+                }
                 Urn urn = urnGenerator.getUrnId(ppn, logical.getType());
                 if (urn.isOldEntry()) {
                     if (urn.getUrn() == null) {
                         log("The database entry with ID" + urn.getId() + " has no urn-value", LogType.ERROR);
                         throw new IllegalArgumentException("The urn-value of the database entry with ID " + urn.getId() + " was null");
                     }
+                    addUrnMetadata(logical, urn.getUrn(), metsUrnAllowed, modsUrnAllowed);
+                    count(UrnMetrics.Outcome.UPDATED);
+                    replaceSuccessful = true;
+                } else if (outbox) {
+                    replaceSuccessful = queueRegistration(logical, elementKey, urn, metsUrnAllowed, modsUrnAllowed);
                 } else {
-                    myNewUrn = urnGenerator.generateUrn(namespace, infix, urn);
-
-                    // if there is a duplicate generate a new URN only relevant for timestamped urns
-                    int breakcount = 0;
-                    while (urnGenerationMethod == UrnGenerationMethod.TIMESTAMP && urnGenerator.findDuplicate(myNewUrn)) {
-                        TimeUnit.SECONDS.sleep(2);
-                        log("URN Generation to fast, had to wait a few seconds", LogType.DEBUG);
-                        myNewUrn = urnGenerator.generateUrn(namespace, infix, urn);
-                        if (breakcount++ > 2) {
-                            throw new IllegalArgumentException("URN: Tried to create an already existing URN 4 times");
-                        }
-                    }
-
-                    try {
-                        if (myNewUrn.equals(urnClient.registerUrn(myNewUrn, urls))) {
-                            urn.setUrn(myNewUrn);
-                            if (!urnGenerator.writeUrnToDatabase(urn)) {
-                                log("The database entry with ID" + urn.getId() + " could not be updated with the new URN: " + urn.getUrn(),
-                                        LogType.ERROR);
-                            } else {
-                                replaceSuccessful = true;
-                            }
-                        }
-                    } catch (Exception ex) {
-                        // if registering the urn fails for any reason
-                        // and the entry is new delete it
-                        replaceSuccessful = false;
-                        if (!urn.isOldEntry()) {
-                            urnGenerator.removeUrnId(urn.getId());
-                            log("Couldn't register URN: " + urn.getUrn() + "with ID: " + urn.getId() + " was removed from database", LogType.ERROR);
-                            throw ex;
-                        } else {
-                            replaceSuccessful = true;
-                        }
+                    // the id of the entry makes timestamped URNs unique, no need to look for duplicates
+                    String newUrn = urnGenerator.generateUrn(namespace, infix, urn);
+                    // the entry must belong to its element before the URN is registered, in case it cannot be written afterwards
+                    urnGenerator.assignUrnId(urn, newUrn);
+                    PendingRequest request = new PendingRequest(logical, elementKey, newUrn, urn, metsUrnAllowed, modsUrnAllowed);
+                    submitRequest(request, timed(UrnMetrics.Phase.POST, () -> urnClient.registerUrn(newUrn, urls)));
+                    if (topmost) {
+                        // the database transaction of anchor and topmost elements is still open, finish them right away
+                        completePendingRequests();
                     }
+                    replaceSuccessful = true;
                 }
-
-                if (metsUrnAllowed) {
-                    md.setValue(urn.getUrn());
-                    logical.addMetadata(md);
-                }
-
-                if (setmodsUrn && modsUrnAllowed) {
-                    Metadata md2 = new Metadata(prefs.getMetadataTypeByName(modsUrnType));
-                    md2.setValue(urn.getUrn());
-                    logical.addMetadata(md2);
-                }
-
-                log("URN: " + urn.getUrn() + " was created successfully", LogType.INFO);
-
-                replaceSuccessful = true;
             } else {
+                count(UrnMetrics.Outcome.FAILED);
                 log("No URN was created because the metada type was not allowed", LogType.ERROR);
                 replaceSuccessful = false;
             }
@@ -385,39 +563,537 @@ public class UrnStepPlugin implements IStepPluginVersion2 {
         return replaceSuccessful;
     }
 
-    @Override
-    public PluginReturnValue run() {
+    /**
+     * Writes a new URN to the database and the element and leaves its registration to the {@link UrnOutboxDispatcher}. The URN and the registration
+     * are committed in one transaction.
+     * 
+     * @return true if the URN was queued
+     */
+    private boolean queueRegistration(DocStruct logical, String elementKey, Urn urn, boolean metsUrnAllowed, boolean modsUrnAllowed)
+            throws SQLException, MetadataTypeNotAllowedException {
+        String newUrn = urnGenerator.generateUrn(namespace, infix, urn);
+        urn.setUrn(newUrn);
+        if (!urnGenerator.queueRegistration(urn, urls)) {
+            urnGenerator.removeUrnId(urn.getId());
+            count(UrnMetrics.Outcome.FAILED);
+            log("URN: " + newUrn + " could not be queued for registration", LogType.ERROR);
+            return false;
+        }
+        checkpoint.store(elementKey, newUrn);
+        addUrnMetadata(logical, newUrn, metsUrnAllowed, modsUrnAllowed);
+        count(UrnMetrics.Outcome.QUEUED);
+        log("URN: " + newUrn + " was queued for registration", LogType.INFO);
+        return true;
+    }
+
+    /**
+     * Replaces the urls of an existing URN, if it is part of the namespace. The request is only sent if the urls differ from the ones that were last
+     * registered for the URN or if the update is forced.
+     * 
+     * @param logical the element, null if the METS file was not parsed
+     * @param metsUrn the METS URN of the element
+     * @param modsUrn the MODS URN of the element or null
+     */
+    private void replaceUrls(DocStruct logical, String metsUrn, String modsUrn) throws JsonSyntaxException, IllegalArgumentException,
+            MetadataTypeNotAllowedException, IOException, InterruptedException, SQLException {
+        if (modsUrn != null && !metsUrn.equals(modsUrn)) {
+            log("There were different values for METS and MODS URN for the same Element", LogType.INFO);
+        }
+        if (metsUrn.startsWith(namespace)) {
+            String fingerprint = UrnUrlFingerprints.fingerprint(metsUrn, urls);
+            if (!forceUrlUpdate && urlFingerprints.isRegistered(metsUrn, fingerprint)) {
+                count(UrnMetrics.Outcome.SKIPPED);
+                log("URN: " + metsUrn + " already has the current urls and was not updated", LogType.DEBUG);
+                return;
+            }
+            if (outbox && getOutbox().updateQueuedUrls(metsUrn, configuration.getUri(), urls)) {
+                // not registered yet, the dispatcher registers it with the new urls
+                count(UrnMetrics.Outcome.QUEUED);
+                log("URN: " + metsUrn + " is still waiting for its registration, the urls were updated in the outbox", LogType.DEBUG);
+                return;
+            }
+            // the result is checked in completeRequest
+            submitRequest(new PendingRequest(logical, metsUrn, fingerprint),
+                    timed(UrnMetrics.Phase.PATCH, () -> urnClient.replaceUrls(metsUrn, urls) ? "success" : "failed"));
+        } else {
+            count(UrnMetrics.Outcome.SKIPPED);
+            log("URN: " + metsUrn + "is not part of the namespace and will not be updated", LogType.INFO);
+        }
+    }
+
+    /**
+     * @return the outbox in the database session of the run
+     */
+    private UrnOutbox getOutbox() throws SQLException {
+        UrnDatabaseSchema.ensureSchema(session.getConnection());
+        return new UrnOutbox(session);
+    }
+
+    /**
+     * @param url the configured url
+     * @return true if the url contains a placeholder for metadata of the document, which can only be replaced in the parsed METS file
+     */
+    static boolean usesDocumentMetadata(String url) {
+        return METADATA_PLACEHOLDER.matcher(url).find();
+    }
+
+    /**
+     * Scans the METS file without parsing it into the UGH model. If every element that gets a URN already has a METS URN, nothing has to be
+     * registered or added and the elements are returned, so that only their urls are replaced. The elements are found by their position: the
+     * outermost element or the children of the anchor are the topmost elements.
+     * 
+     * @return the elements with a URN in the order of the tree or null if the METS file has to be parsed
+     */
+    private List<UrnMetsScan.ScannedElement> scanForExistingUrns() throws IOException, SwapException {
+        if (usesDocumentMetadata(publicationUrl)) {
+            // the url needs the metadata of the document
+            return null;
+        }
+        UrnMetsScan scan;
+        long start = System.nanoTime();
         try {
-            urnGenerator = new UrnGenerator(urnGenerationMethod, generateChecksum, this.processId);
-            urnClient = new UrnRestClient(uri, namespace, apiUser, apiPassword);
+            scan = UrnMetsScan.scan(Paths.get(process.getMetadataFilePath()), metsUrnType, modsUrnType);
+        } catch (XMLStreamException e) {
+            log.debug("URN PLUGIN: could not scan the METS file, it is parsed instead - ProcessID:" + this.processId, e);
+            return null;
+        }
+        metrics.record(UrnMetrics.Phase.METS_READ, start);
 
-            // read mets file
-            ff = step.getProzess().readMetadataFile();
-            prefs = step.getProzess().getRegelsatz().getPreferences();
-            ppntype = prefs.getMetadataTypeByName("CatalogIDDigital");
-            DocStruct ds = ff.getDigitalDocument().getLogicalDocStruct();
+        List<UrnMetsScan.ScannedElement> elements = scan.getElements();
+        if (elements.isEmpty()) {
+            return null;
+        }
+        int topmostDepth = 0;
+        if (elements.get(0).isAnchor()) {
+            if (setAnchorUrn) {
+                // the URN of the anchor is stored in the anchor file
+                return null;
+            }
+            topmostDepth = 1;
+        }
+        List<UrnMetsScan.ScannedElement> result = new ArrayList<>();
+        for (UrnMetsScan.ScannedElement element : elements) {
+            int depth = element.getDepth();
+            // without allowed types only the anchor and the topmost elements are visited, see setUrn
+            if (element.isAnchor() || (allowedTypes.length == 0 && depth > topmostDepth)) {
+                continue;
+            }
+            boolean eligible = (depth == topmostDepth && setWorkUrn) || Arrays.asList(allowedTypes).contains(element.getType());
+            if (!eligible || "boundbook".equals(element.getType())) {
+                continue;
+            }
+            if (element.getMetsUrn() == null) {
+                // a URN must be registered or copied from the MODS URN
+                return null;
+            }
+            result.add(element);
+        }
+        return result;
+    }
 
-            // initialize VariableReplacer
-            VariableReplacer replacer = new VariableReplacer(ff.getDigitalDocument(), prefs, step.getProzess(), step);
+    /**
+     * wraps the call to the URN service, so that its duration is recorded in the thread that executes it
+     */
+    private Callable<String> timed(UrnMetrics.Phase phase, Callable<String> call) {
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                return call.call();
+            } finally {
+                metrics.record(phase, start);
+            }
+        };
+    }
 
-            // create URL and add Value from Configuration
-            urls = new ArrayList<>();
-            urls.add(replacer.replace(publicationUrl));
+    /**
+     * Runs the request to the URN service. If parallel requests are configured, the request is handed to the executor and only the oldest requests
+     * are completed when too many are pending. Otherwise the request is executed and completed right away.
+     * 
+     * @param request the request
+     * @param call the call to the URN service
+     */
+    private void submitRequest(PendingRequest request, Callable<String> call) throws JsonSyntaxException, IllegalArgumentException,
+            MetadataTypeNotAllowedException, IOException, InterruptedException, SQLException {
+        FutureTask<String> task = new FutureTask<>(() -> {
+            if (!request.getStarted().compareAndSet(false, true)) {
+                // the request was aborted before it was sent
+                throw new CancellationException();
+            }
+            return call.call();
+        });
+        request.setResult(task);
+        pendingRequests.addLast(request);
+        if (registrationExecutor == null) {
+            task.run();
+            completePendingRequests();
+        } else {
+            registrationExecutor.execute(task);
+            while (pendingRequests.size() > parallelRequests * 4) {
+                completeRequest(pendingRequests.pollFirst());
+            }
+        }
+    }
 
-            setUrn(ds);
-            step.getProzess().writeMetadataFile(ff);
+    /**
+     * completes all pending requests in the order of the tree
+     */
+    private void completePendingRequests() throws JsonSyntaxException, IllegalArgumentException, MetadataTypeNotAllowedException, IOException,
+            InterruptedException, SQLException {
+        while (!pendingRequests.isEmpty()) {
+            completeRequest(pendingRequests.pollFirst());
+        }
+    }
 
+    /**
+     * Waits for the result of a request. New URNs are written to the database and added to the element, failed registrations are removed from the
+     * database. This is always done in the thread of the step.
+     * 
+     * @param request the request to complete
+     */
+    private void completeRequest(PendingRequest request) throws JsonSyntaxException, IllegalArgumentException, MetadataTypeNotAllowedException,
+            IOException, InterruptedException, SQLException {
+        String result = null;
+        Throwable failure = null;
+        try {
+            result = request.getResult().get();
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        }
+
+        if (request.getUrn() == null) {
+            // replaced the urls of an existing URN
+            if (failure != null) {
+                count(UrnMetrics.Outcome.FAILED);
+                rethrow(failure);
+            }
+            if (!"success".equals(result)) {
+                count(UrnMetrics.Outcome.FAILED);
+                log("URN: " + request.getUrnValue() + " could not be updated", LogType.ERROR);
+                successful = false;
+            } else {
+                urlFingerprints.store(request.getUrnValue(), request.getFingerprint());
+                count(UrnMetrics.Outcome.UPDATED);
+                log("URN: " + request.getUrnValue() + " was updated successfully", LogType.DEBUG);
+            }
+            return;
+        }
+
+        Urn urn = request.getUrn();
+        boolean written = false;
+        try {
+            if (failure != null) {
+                rethrow(failure);
+            }
+            if (request.getUrnValue().equals(result)) {
+                urn.setUrn(request.getUrnValue());
+                written = urnGenerator.writeUrnToDatabase(urn);
+            }
+        } catch (IOException | RuntimeException | SQLException ex) {
+            count(UrnMetrics.Outcome.FAILED);
+            if (ex instanceof SocketTimeoutException && urn.getStructType() != null) {
+                // the URN service may have registered the URN without answering, the assigned entry is kept for the reconciliation
+                log("The registration of URN: " + request.getUrnValue() + " timed out, the database entry with ID " + urn.getId() + " was kept",
+                        LogType.ERROR);
+                throw ex;
+            }
+            // if registering the urn fails for any reason
+            // and the entry is new delete it
+            urnGenerator.removeUrnId(urn.getId());
+            log("Couldn't register URN: " + urn.getUrn() + "with ID: " + urn.getId() + " was removed from database", LogType.ERROR);
+            throw ex;
+        }
+        if (!written) {
+            if (urn.getUrn() == null) {
+                // the URN service did not confirm the URN, nothing was registered for the entry
+                urnGenerator.removeUrnId(urn.getId());
+                log("The URN service answered with: " + result + " instead of URN: " + request.getUrnValue() + ", the database entry with ID "
+                        + urn.getId() + " was removed", LogType.ERROR);
+            } else {
+                // the URN is registered, the entry is kept for the reconciliation
+                log("The database entry with ID" + urn.getId() + " could not be updated with the new URN: " + urn.getUrn(), LogType.ERROR);
+            }
+            count(UrnMetrics.Outcome.FAILED);
+            successful = false;
+            return;
+        }
+        checkpoint.store(request.getElementKey(), urn.getUrn());
+        urlFingerprints.store(urn.getUrn(), UrnUrlFingerprints.fingerprint(urn.getUrn(), urls));
+        addUrnMetadata(request.getLogical(), urn.getUrn(), request.isMetsUrnAllowed(), request.isModsUrnAllowed());
+        count(UrnMetrics.Outcome.CREATED);
+        log("URN: " + urn.getUrn() + " was created successfully", LogType.INFO);
+    }
+
+    /**
+     * Cancels the requests that are still pending after an error. Requests that were not sent yet are never sent. The threads of the requests in
+     * flight are interrupted, so that a throttled request is not sent again and only its current attempt is awaited, as long as the timeouts of the
+     * client allow. Registrations that succeeded are written to the database and the {@link UrnCheckpoint}, so that the next run reuses them. All
+     * others are removed from the database. If the result of a registration is still unknown, e.g. because the URN service did not answer in time,
+     * its entry is kept for the {@link UrnReconciliation}.
+     */
+    private void abortPendingRequests() {
+        if (registrationExecutor != null) {
+            // requests that were not started yet are cancelled below
+            registrationExecutor.shutdownNow();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(urnClient.getRequestTimeoutMillis());
+        while (!pendingRequests.isEmpty()) {
+            PendingRequest request = pendingRequests.pollFirst();
+            boolean sent = !request.getStarted().compareAndSet(false, true);
+            if (!sent) {
+                request.getResult().cancel(false);
+            }
+            Urn urn = request.getUrn();
+            if (urn == null) {
+                continue;
+            }
+            if (sent) {
+                try {
+                    String result = request.getResult().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (request.getUrnValue().equals(result)) {
+                        urn.setUrn(result);
+                        if (urnGenerator.writeUrnToDatabase(urn)) {
+                            checkpoint.store(request.getElementKey(), result);
+                            log("URN: " + result + " was registered before the run was aborted and is reused by the next run", LogType.INFO);
+                            continue;
+                        }
+                        log("The database entry with ID" + urn.getId() + " could not be updated with the new URN: " + result, LogType.ERROR);
+                    }
+                } catch (InterruptedException | TimeoutException e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    log("The registration of URN: " + request.getUrnValue() + " did not finish, the database entry with ID " + urn.getId()
+                            + " was kept", LogType.ERROR);
+                    continue;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SocketTimeoutException && urn.getStructType() != null) {
+                        // the URN service may have registered the URN without answering
+                        log("The registration of URN: " + request.getUrnValue() + " timed out, the database entry with ID " + urn.getId()
+                                + " was kept", LogType.ERROR);
+                        continue;
+                    }
+                    // the entry is removed below
+                } catch (SQLException e) {
+                    // the entry is removed below
+                }
+            }
+            urnGenerator.removeUrnId(urn.getId());
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+
+    private void addUrnMetadata(DocStruct logical, String urn, boolean metsUrnAllowed, boolean modsUrnAllowed) throws MetadataTypeNotAllowedException {
+        if (metsUrnAllowed) {
+            Metadata md = new Metadata(metsUrnMetadataType);
+            md.setValue(urn);
+            logical.addMetadata(md);
+            metadataChanged = true;
+        }
+
+        if (setmodsUrn && modsUrnAllowed) {
+            Metadata md2 = new Metadata(modsUrnMetadataType);
+            md2.setValue(urn);
+            logical.addMetadata(md2);
+            metadataChanged = true;
+        }
+    }
+
+    /**
+     * Parses the METS file, registers the missing URNs and writes the file if metadata was added
+     */
+    private void parseAndSetUrns() throws ReadException, PreferencesException, WriteException, IOException, InterruptedException, SwapException,
+            DAOException, MetadataTypeNotAllowedException, SQLException, UrnDatabaseException {
+        if (repository != null) {
+            urnGenerator = new UrnGenerator(urnGenerationMethod, generateChecksum, repository);
+        } else {
+            urnGenerator = new UrnGenerator(urnGenerationMethod, generateChecksum, new UrnMySqlRepository(this.processId, idBlockSize, session));
+        }
+        urnGenerator.setMetrics(metrics);
+        if (outbox) {
+            urnGenerator.enableOutbox(configuration.getUri());
+        }
+
+        if (checkpoint == null) {
+            // the URNs of an earlier run are only valid as long as the METS file was not changed
+            long metsVersion = Files.getLastModifiedTime(Paths.get(process.getMetadataFilePath())).toMillis();
+            checkpoint = new UrnCheckpoint(this.processId, metsVersion, session);
+        }
+        checkpointedUrns = checkpoint.load();
+
+        // read mets file
+        long start = System.nanoTime();
+        ff = process.readMetadataFile();
+        metrics.record(UrnMetrics.Phase.METS_READ, start);
+        if (prefs == null) {
+            prefs = process.getRegelsatz().getPreferences();
+        }
+        resolveMetadataTypes();
+        DocStruct ds = ff.getDigitalDocument().getLogicalDocStruct();
+
+        // initialize VariableReplacer
+        VariableReplacer replacer = new VariableReplacer(ff.getDigitalDocument(), prefs, process, step);
+
+        // create URL and add Value from Configuration
+        urls = new ArrayList<>();
+        urls.add(replacer.replace(publicationUrl));
+
+        urnGenerator.setExpectedElements(countElementsWithoutUrn(ds));
+        setUrn(ds);
+        completePendingRequests();
+        if (metadataChanged) {
+            start = System.nanoTime();
+            process.writeMetadataFile(ff);
+            metrics.record(UrnMetrics.Phase.METS_WRITE, start);
+        } else {
+            // all elements already had their URN, do not write the file and its backup again
+            log("No metadata was added, the METS file was not written", LogType.DEBUG);
+        }
+        // the URNs are in the METS file now
+        checkpoint.clear();
+    }
+
+    @Override
+    public PluginReturnValue run() {
+        try {
+            if (urnClient == null) {
+                urnClient = configuration.createClient();
+            }
+            // the connection is taken from the pool on first use
+            session = new UrnDatabaseSession(this.processId);
+            if (urlFingerprints == null) {
+                urlFingerprints = new UrnUrlFingerprints(this.processId, session);
+            }
+            pendingRequests = new ArrayDeque<>();
+            if (parallelRequests > 1) {
+                registrationExecutor = Executors.newFixedThreadPool(parallelRequests);
+            }
+
+            List<UrnMetsScan.ScannedElement> existingUrns = configuration.isPreScan() ? scanForExistingUrns() : null;
+            if (existingUrns != null) {
+                // nothing new, only replace the urls without parsing the METS file and without the urn_table
+                log.debug("URN PLUGIN: All elements already have a URN, the METS file was not parsed - ProcessID:" + this.processId);
+                urls = new ArrayList<>();
+                // the url has no metadata placeholders, so the ruleset is not loaded for it
+                urls.add(new VariableReplacer(null, prefs != null ? prefs : new Prefs(), process, step).replace(publicationUrl));
+                for (UrnMetsScan.ScannedElement element : existingUrns) {
+                    replaceUrls(null, element.getMetsUrn(), element.getModsUrn());
+                }
+                completePendingRequests();
+            } else {
+                parseAndSetUrns();
+            }
         } catch (ReadException | JsonException | PreferencesException | WriteException | IOException | IllegalArgumentException | InterruptedException
                 | SwapException | DAOException | MetadataTypeNotAllowedException | SQLException | JsonSyntaxException | UrnDatabaseException e) {
             log(e.getMessage(), LogType.ERROR);
+            errorMessage = e.getMessage();
             successful = false;
+        } finally {
+            if (pendingRequests != null) {
+                abortPendingRequests();
+            }
+            if (urnGenerator != null) {
+                urnGenerator.close();
+            }
+            if (urlFingerprints != null) {
+                urlFingerprints.close();
+                urlFingerprints = null;
+            }
+            if (checkpoint != null) {
+                checkpoint.close();
+                checkpoint = null;
+            }
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+            if (registrationExecutor != null) {
+                registrationExecutor.shutdownNow();
+                registrationExecutor = null;
+            }
+            if (urnClient != null) {
+                log.debug("URN PLUGIN: rate limit " + urnClient.getRateLimiter() + " - ProcessID:" + this.processId);
+                log.debug("URN PLUGIN: circuit breaker " + urnClient.getCircuitBreaker() + " - ProcessID:" + this.processId);
+            }
+        }
+        if (outbox) {
+            // register the queued URNs in the background
+            UrnOutboxDispatcher.schedule(configuration);
         }
 
         if (!successful) {
-            log("Errors occured executing the URN Plugin", LogType.INFO);
+            log.info("URN PLUGIN: Errors occured executing the URN Plugin - ProcessID:" + this.processId);
+            journal.flush("URN PLUGIN: Errors occured executing the URN Plugin", LogType.INFO);
             return PluginReturnValue.ERROR;
         }
-        log("Registering and writing URNs was successfull", LogType.INFO);
+        log.info("URN PLUGIN: Registering and writing URNs was successfull - ProcessID:" + this.processId);
+        journal.flush("URN PLUGIN: Registering and writing URNs was successfull", LogType.INFO);
         return PluginReturnValue.FINISH;
     }
+
+    /**
+     * the values of one element that are read in a single pass over its metadata
+     */
+    private static class ElementScan {
+        private String ppn;
+        private String metsUrn;
+        private String modsUrn;
+    }
+
+    /**
+     * cached information about a structure type
+     */
+    private static class TypeInfo {
+        // the element gets a URN
+        private boolean eligible;
+        private boolean metsUrnAllowed;
+        private boolean modsUrnAllowed;
+    }
+
+    /**
+     * a request to the URN service whose result is applied to the element in the thread of the step
+     */
+    @Getter
+    private static class PendingRequest {
+        private final DocStruct logical;
+        // identifies a new URN in the checkpoint
+        private final String elementKey;
+        // the existing URN for url replacements, the new URN for registrations
+        private final String urnValue;
+        // database entry of a new URN, null for url replacements
+        private final Urn urn;
+        private final boolean metsUrnAllowed;
+        private final boolean modsUrnAllowed;
+        // fingerprint of the urls of a url replacement
+        private String fingerprint;
+        @Setter
+        private Future<String> result;
+        // set by the thread that sends the request, or by the step to prevent that it is sent
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private PendingRequest(DocStruct logical, String existingUrn, String fingerprint) {
+            this(logical, null, existingUrn, null, false, false);
+            this.fingerprint = fingerprint;
+        }
+
+        private PendingRequest(DocStruct logical, String elementKey, String urnValue, Urn urn, boolean metsUrnAllowed, boolean modsUrnAllowed) {
+            this.logical = logical;
+            this.elementKey = elementKey;
+            this.urnValue = urnValue;
+            this.urn = urn;
+            this.metsUrnAllowed = metsUrnAllowed;
+            this.modsUrnAllowed = modsUrnAllowed;
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package de.intranda.goobi.plugins;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the timestamp part of URNs generated with the TIMESTAMP method. The timestamps have a resolution of one second and never go backwards in
+ * this JVM, even if the system clock does. They are not unique on their own: several URNs are created in the same second, therefore the urn_id of
+ * the database entry is appended as sequence. The urn_id is unique on all nodes that share the database, so the URNs are unique without waiting or
+ * asking the database for duplicates.
+ */
+final class UrnTimestampGenerator {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("uuuuMMddHHmmss").withZone(ZoneId.systemDefault());
+
+    private static final AtomicLong LAST_SECOND = new AtomicLong();
+    // the timestamp of the last second is formatted only once
+    private static volatile FormattedSecond lastFormatted = new FormattedSecond(-1, null);
+
+    private UrnTimestampGenerator() {
+    }
+
+    /**
+     * @return the current timestamp in the format uuuuMMddHHmmss, never earlier than a previously returned one
+     */
+    static String nextTimestamp() {
+        long now = System.currentTimeMillis() / 1000;
+        long second = LAST_SECOND.accumulateAndGet(now, Math::max);
+        FormattedSecond formatted = lastFormatted;
+        if (formatted.second != second) {
+            formatted = new FormattedSecond(second, FORMATTER.format(Instant.ofEpochSecond(second)));
+            lastFormatted = formatted;
+        }
+        return formatted.text;
+    }
+
+    /**
+     * Creates the unique part of a URN from the current timestamp and the id of the database entry
+     *
+     * @param urnId id of the database entry of the URN
+     * @return timestamp followed by the id
+     */
+    static String nextTimestamp(int urnId) {
+        return nextTimestamp() + urnId;
+    }
+
+    private static final class FormattedSecond {
+        private final long second;
+        private final String text;
+
+        private FormattedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
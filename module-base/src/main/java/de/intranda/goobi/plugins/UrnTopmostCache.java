@@ -0,0 +1,135 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import lombok.EqualsAndHashCode;
+
+/**
+ * JVM wide cache of the entries of anchor and topmost elements, shared by all steps. The volumes of a periodical all look up the same anchor, with
+ * the cache only the first of them reads it from the database. Only entries that already have a URN are cached, they do not change anymore until
+ * they are removed. Entries are evicted after a while, so that changes made by other nodes are seen eventually, and the least recently used ones
+ * are evicted if the cache is full.
+ */
+final class UrnTopmostCache {
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final long TTL_MINUTES = 10;
+
+    /**
+     * the cache used by all {@link UrnMySqlRepository}s of the JVM
+     */
+    static final UrnTopmostCache SHARED = new UrnTopmostCache(MAX_ENTRIES, TimeUnit.MINUTES.toNanos(TTL_MINUTES), System::nanoTime);
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    // access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /**
+     * @param maxEntries maximum number of cached entries
+     * @param ttlNanos time after which an entry is read from the database again
+     * @param clock source of the current time in nanoseconds
+     */
+    UrnTopmostCache(int maxEntries, long ttlNanos, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > UrnTopmostCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param workID id of the work (ppn)
+     * @param structType name of the structure type
+     * @return a copy of the cached entry or null if it is not cached or expired
+     */
+    synchronized Urn get(String workID, String structType) {
+        Key key = new Key(workID, structType);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (clock.getAsLong() - entry.created > ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        // Urn is mutable, every caller gets its own instance
+        return new Urn(entry.urnId, entry.urn, true);
+    }
+
+    /**
+     * Caches an existing entry. Entries without URN are ignored, they are still being created or were left behind by a failed step.
+     *
+     * @param workID id of the work (ppn)
+     * @param structType name of the structure type
+     * @param urn the entry from the database
+     */
+    synchronized void put(String workID, String structType, Urn urn) {
+        if (urn.getUrn() == null) {
+            return;
+        }
+        entries.put(new Key(workID, structType), new Entry(urn.getId(), urn.getUrn(), clock.getAsLong()));
+    }
+
+    /**
+     * removes the entry with the given id, e.g. because it was deleted from the database
+     *
+     * @param urnId id of the entry
+     */
+    synchronized void invalidate(int urnId) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().urnId == urnId) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * removes all entries
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return number of cached entries, including expired ones that were not looked up again yet
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @EqualsAndHashCode
+    private static final class Key {
+        private final String workID;
+        private final String structType;
+
+        private Key(String workID, String structType) {
+            this.workID = workID;
+            this.structType = structType;
+        }
+    }
+
+    private static final class Entry {
+        private final int urnId;
+        private final String urn;
+        private final long created;
+
+        private Entry(int urnId, String urn, long created) {
+            this.urnId = urnId;
+            this.urn = urn;
+            this.created = created;
+        }
+    }
+}
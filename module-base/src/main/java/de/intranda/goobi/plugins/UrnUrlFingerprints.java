@@ -0,0 +1,123 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Remembers a hash of the urls that were last registered successfully for a URN, so that the urls of an unchanged URN are not sent to the URN
+ * service again. The hashes are stored in the table urn_url_fingerprint. Errors of the database are only logged, in this case the urls are sent.
+ */
+@Log4j2
+public class UrnUrlFingerprints implements AutoCloseable {
+    private static final String URN_COLUMN_NAME = "urn";
+    private static final String FINGERPRINT_COLUMN_NAME = "fingerprint";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int processId;
+    private final UrnDatabaseSession session;
+    // false if the session belongs to the caller and is closed by it
+    private final boolean ownSession;
+
+    /**
+     * @param processId id of the process, used for logging
+     */
+    public UrnUrlFingerprints(int processId) {
+        this(processId, new UrnDatabaseSession(processId), true);
+    }
+
+    /**
+     * uses the database session of the caller, the session is not closed by {@link #close()}
+     *
+     * @param processId id of the process, used for logging
+     * @param session the database session
+     */
+    UrnUrlFingerprints(int processId, UrnDatabaseSession session) {
+        this(processId, session, false);
+    }
+
+    private UrnUrlFingerprints(int processId, UrnDatabaseSession session, boolean ownSession) {
+        this.processId = processId;
+        this.session = session;
+        this.ownSession = ownSession;
+    }
+
+    /**
+     * Calculates the fingerprint of the urls as they are sent to the URN service
+     *
+     * @param urn the URN
+     * @param urls the urls, {pi.urn} is replaced with the URN
+     * @return SHA-256 hash of the request body as hex string
+     */
+    public static String fingerprint(String urn, List<String> urls) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(UrnRestClient.replaceUrlsBodyString(urn, urls).getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param urn the URN
+     * @param fingerprint fingerprint of the current urls
+     * @return true if these urls were already registered for the URN
+     */
+    public boolean isRegistered(String urn, String fingerprint) {
+        try {
+            UrnDatabaseSchema.ensureSchema(session.getConnection());
+            PreparedStatement query = session.prepare("SELECT " + FINGERPRINT_COLUMN_NAME + " FROM " + UrnDatabaseSchema.FINGERPRINT_TABLE_NAME
+                    + " WHERE " + URN_COLUMN_NAME + "=?");
+            query.setString(1, urn);
+            try (ResultSet rs = query.executeQuery()) {
+                return rs.next() && fingerprint.equals(rs.getString(1));
+            }
+        } catch (SQLException ex) {
+            log.warn("URN PLUGIN: Reading the url fingerprint of URN: " + urn + " failed, the urls will be sent - ProcessID: " + this.processId, ex);
+            return false;
+        }
+    }
+
+    /**
+     * stores the fingerprint of the urls that were registered successfully for the URN
+     *
+     * @param urn the URN
+     * @param fingerprint fingerprint of the registered urls
+     */
+    public void store(String urn, String fingerprint) {
+        try {
+            UrnDatabaseSchema.ensureSchema(session.getConnection());
+            PreparedStatement update = session.prepare("INSERT INTO " + UrnDatabaseSchema.FINGERPRINT_TABLE_NAME + " (" + URN_COLUMN_NAME + ","
+                    + FINGERPRINT_COLUMN_NAME + ") VALUES (?,?) ON DUPLICATE KEY UPDATE " + FINGERPRINT_COLUMN_NAME + "=VALUES("
+                    + FINGERPRINT_COLUMN_NAME + ")");
+            update.setString(1, urn);
+            update.setString(2, fingerprint);
+            update.executeUpdate();
+        } catch (SQLException ex) {
+            log.error("URN PLUGIN: Storing the url fingerprint of URN: " + urn + " failed - ProcessID: " + this.processId, ex);
+        }
+    }
+
+    /**
+     * returns the database connection to the pool, unless the session belongs to the caller
+     */
+    @Override
+    public void close() {
+        if (ownSession) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package de.intranda.goobi.plugins.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Reads and writes the JSON messages of the URN service. Request bodies are written directly into the stream of the HTTP request and responses are
+ * parsed from the stream of the HTTP entity, without intermediate strings or object graphs. All methods are thread safe, the type adapters are
+ * shared.
+ */
+public final class UrnJsonCodec {
+
+    private static final Gson GSON = new Gson();
+    private static final TypeAdapter<UrnCreationSuccessfulMessage> CREATION_SUCCESSFUL_ADAPTER = GSON.getAdapter(UrnCreationSuccessfulMessage.class);
+    private static final TypeAdapter<UrnSuggestionMessage> SUGGESTION_ADAPTER = GSON.getAdapter(UrnSuggestionMessage.class);
+    private static final TypeAdapter<ErrorMessage> ERROR_ADAPTER = GSON.getAdapter(ErrorMessage.class);
+    private static final String URN_PLACEHOLDER = "{pi.urn}";
+
+    private UrnJsonCodec() {
+    }
+
+    /**
+     * @param urn the new URN
+     * @param urls the urls of the URN, {pi.urn} is replaced with the URN
+     * @return the entity of the request that registers the URN
+     */
+    public static HttpEntity createUrnEntity(String urn, List<String> urls) {
+        return new JsonEntity(writer -> writeCreation(writer, urn, urls));
+    }
+
+    /**
+     * @param urn the URN
+     * @param urls the urls of the URN, {pi.urn} is replaced with the URN
+     * @return the entity of the request that replaces the urls of the URN
+     */
+    public static HttpEntity replaceUrlsEntity(String urn, List<String> urls) {
+        return new JsonEntity(writer -> writeUrls(writer, urn, urls));
+    }
+
+    /**
+     * @return the body of the request that registers the URN as string
+     */
+    public static String createUrnJson(String urn, List<String> urls) {
+        return toJson(writer -> writeCreation(writer, urn, urls));
+    }
+
+    /**
+     * @return the body of the request that replaces the urls of the URN as string
+     */
+    public static String replaceUrlsJson(String urn, List<String> urls) {
+        return toJson(writer -> writeUrls(writer, urn, urls));
+    }
+
+    /**
+     * @param entity entity of a successful registration
+     * @return the message or null if the entity was empty
+     * @throws IOException if the entity could not be read
+     * @throws JsonSyntaxException if the entity is no valid message
+     */
+    public static UrnCreationSuccessfulMessage readCreationSuccessful(HttpEntity entity) throws IOException {
+        return read(entity, CREATION_SUCCESSFUL_ADAPTER);
+    }
+
+    /**
+     * @param entity entity of a suggestion
+     * @return the message or null if the entity was empty
+     * @throws IOException if the entity could not be read
+     * @throws JsonSyntaxException if the entity is no valid message
+     */
+    public static UrnSuggestionMessage readSuggestion(HttpEntity entity) throws IOException {
+        return read(entity, SUGGESTION_ADAPTER);
+    }
+
+    /**
+     * @param entity entity of an error response
+     * @return the message or null if the entity was empty
+     * @throws IOException if the entity could not be read
+     * @throws JsonSyntaxException if the entity is no valid message
+     */
+    public static ErrorMessage readError(HttpEntity entity) throws IOException {
+        return read(entity, ERROR_ADAPTER);
+    }
+
+    private static <T> T read(HttpEntity entity, TypeAdapter<T> adapter) throws IOException {
+        InputStream content = entity.getContent();
+        if (content == null) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(content, StandardCharsets.UTF_8)) {
+            JsonReader jsonReader = new JsonReader(reader);
+            // as lenient as Gson.fromJson
+            jsonReader.setLenient(true);
+            return adapter.read(jsonReader);
+        } catch (EOFException e) {
+            // empty body
+            return null;
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static void writeCreation(JsonWriter writer, String urn, List<String> urls) throws IOException {
+        writer.beginObject();
+        writer.name("urn").value(urn);
+        writer.name("urls");
+        writeUrls(writer, urn, urls);
+        writer.endObject();
+    }
+
+    private static void writeUrls(JsonWriter writer, String urn, List<String> urls) throws IOException {
+        writer.beginArray();
+        for (String url : urls) {
+            writer.beginObject();
+            writer.name("url").value(urn == null ? url : url.replace(URN_PLACEHOLDER, urn));
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static String toJson(JsonBody body) {
+        StringWriter out = new StringWriter();
+        try {
+            body.write(createWriter(out));
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * creates a writer with the settings of a default {@link Gson} instance, so that the output does not differ from the former bodies
+     */
+    private static JsonWriter createWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    @FunctionalInterface
+    private interface JsonBody {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    /**
+     * entity that writes its JSON body directly into the stream of the request. It can be sent again, e.g. after the request was throttled.
+     */
+    private static final class JsonEntity extends AbstractHttpEntity {
+        private final JsonBody body;
+
+        private JsonEntity(JsonBody body) {
+            this.body = body;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(toJson(body).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            Writer out = new OutputStreamWriter(outStream, StandardCharsets.UTF_8);
+            JsonWriter writer = createWriter(out);
+            body.write(writer);
+            // the stream belongs to the connection and must not be closed
+            writer.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
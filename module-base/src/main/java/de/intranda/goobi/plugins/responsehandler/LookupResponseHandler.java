@@ -0,0 +1,35 @@
+package de.intranda.goobi.plugins.responsehandler;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Handles the response of a request for a single URN. The body is not needed, only the status tells if the URN exists.
+ */
+public class LookupResponseHandler extends UrnResponseHandler {
+
+    public static final String FOUND = "found";
+    public static final String NOT_FOUND = "not found";
+
+    @Override
+    public String handleResponse(HttpResponse response) throws IOException, JsonSyntaxException {
+        initialize(response);
+        if (status == 200) {
+            // release the connection without parsing the body
+            EntityUtils.consume(entity);
+            return FOUND;
+        }
+        if (status == 404) {
+            EntityUtils.consume(entity);
+            return NOT_FOUND;
+        }
+        handleErrorStates();
+        //not reachable
+        return null;
+    }
+
+}
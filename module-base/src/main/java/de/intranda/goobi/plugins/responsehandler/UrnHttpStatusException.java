@@ -0,0 +1,34 @@
+package de.intranda.goobi.plugins.responsehandler;
+
+import org.apache.http.client.ClientProtocolException;
+
+import lombok.Getter;
+
+/**
+ * Thrown by the response handlers if the URN service answered with an error status
+ */
+public class UrnHttpStatusException extends ClientProtocolException {
+
+    private static final long serialVersionUID = -2093862287450176612L;
+
+    @Getter
+    private final int status;
+    /**
+     * milliseconds to wait before the next request as requested by a Retry-After header, -1 if there was none
+     */
+    @Getter
+    private final long retryAfterMillis;
+
+    public UrnHttpStatusException(int status, long retryAfterMillis, String message) {
+        super(message);
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return true if the URN service asked to send fewer requests
+     */
+    public boolean isThrottled() {
+        return status == 429 || status == 503;
+    }
+}
@@ -1,34 +1,58 @@
 package de.intranda.goobi.plugins.responsehandler;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.Date;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.client.utils.DateUtils;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import de.intranda.goobi.plugins.messages.ErrorMessage;
+import de.intranda.goobi.plugins.messages.UrnJsonCodec;
 
 public abstract class UrnResponseHandler implements ResponseHandler<String> {
     protected int status;
     protected HttpEntity entity;
-    protected Gson gson;
+    protected long retryAfterMillis;
 
     /**
      * Helper method of handleResponse that can be used by the Children of an UrnResponseHandler to set the status and the message entity of the
-     * UrnResponsehandler. It also intitializes gson.
+     * UrnResponsehandler. The messages are parsed with the shared {@link UrnJsonCodec}.
      * 
      * @param response HttpResponse Object
      */
     protected void initialize(HttpResponse response) {
         status = response.getStatusLine().getStatusCode();
         entity = response.getEntity();
-        gson = new Gson();
+        retryAfterMillis = parseRetryAfter(response.getFirstHeader(HttpHeaders.RETRY_AFTER));
+    }
+
+    /**
+     * Helper method of initialize. Reads the Retry-After header, which contains either a number of seconds or a HTTP date.
+     * 
+     * @param header the Retry-After header or null
+     * @return milliseconds to wait or -1 if there was no valid header
+     */
+    static long parseRetryAfter(Header header) {
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        if (StringUtils.isNumeric(value)) {
+            return Long.parseLong(value) * 1000;
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
     }
 
     @Override
@@ -37,7 +61,7 @@ public abstract class UrnResponseHandler implements ResponseHandler<String> {
     /**
      * Helper Method of handleResponse() that can be used by the Children of an UrnResponseHandler
      * 
-     * @throws ClientProtocolException
+     * @throws ClientProtocolException always, as {@link UrnHttpStatusException} with the status of the response
      * @throws IOException
      * @throws JsonSyntaxException
      */
@@ -46,13 +70,17 @@ public abstract class UrnResponseHandler implements ResponseHandler<String> {
 
             ErrorMessage error = null;
             if (entity != null) {
-                String jsonString = EntityUtils.toString(entity, StandardCharsets.UTF_8);
-                error = gson.fromJson(jsonString, ErrorMessage.class);
+                try {
+                    error = UrnJsonCodec.readError(entity);
+                } catch (JsonSyntaxException e) {
+                    // a throttling proxy may answer without JSON, the status is more important than the body
+                    error = null;
+                }
             }
-            throw new ClientProtocolException(error == null ? ("Error: " + status + " -> no response body received")
+            throw new UrnHttpStatusException(status, retryAfterMillis, error == null ? ("Error: " + status + " -> no response body received")
                     : "Errorcode: " + error.getCode() + ": " + error.getDeveloperMessage());
         } else {
-            throw new ClientProtocolException("Error: " + status + ": reason-> " + " unhandled error");
+            throw new UrnHttpStatusException(status, retryAfterMillis, "Error: " + status + ": reason-> " + " unhandled error");
         }
     }
 }
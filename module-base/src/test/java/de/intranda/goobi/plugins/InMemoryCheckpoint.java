@@ -0,0 +1,43 @@
+package de.intranda.goobi.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keeps the URNs of the checkpoint in memory instead of the database
+ */
+public class InMemoryCheckpoint extends UrnCheckpoint {
+    private final Map<String, String> urns = new ConcurrentHashMap<>();
+
+    public InMemoryCheckpoint() {
+        super(-1, 0);
+    }
+
+    @Override
+    public Map<String, String> load() {
+        return new HashMap<>(urns);
+    }
+
+    @Override
+    public void store(String elementKey, String urn) {
+        urns.put(elementKey, urn);
+    }
+
+    @Override
+    public void clear() {
+        urns.clear();
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    /**
+     * @return the stored URNs by key of their element
+     */
+    public Map<String, String> getUrns() {
+        return urns;
+    }
+}
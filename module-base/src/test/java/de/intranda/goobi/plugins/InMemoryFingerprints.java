@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keeps the fingerprints in memory instead of the database
+ */
+public class InMemoryFingerprints extends UrnUrlFingerprints {
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    public InMemoryFingerprints() {
+        super(-1);
+    }
+
+    @Override
+    public boolean isRegistered(String urn, String fingerprint) {
+        return fingerprint.equals(fingerprints.get(urn));
+    }
+
+    @Override
+    public void store(String urn, String fingerprint) {
+        fingerprints.put(urn, fingerprint);
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+}
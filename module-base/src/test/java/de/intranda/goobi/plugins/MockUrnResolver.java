@@ -0,0 +1,304 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Local stand-in for the URN service (https://api.nbn-resolving.org/v2/) for integration and load tests without network. It serves HTTPS with
+ * the self-signed certificate of localhost from mock_resolver.p12 and implements the creation of URNs, the lookup of single URNs and the
+ * replacement of their urls. Latency, jitter, throttling and server errors can be injected.
+ */
+public class MockUrnResolver implements AutoCloseable {
+
+    private static final String KEYSTORE = "/mock_resolver.p12";
+    private static final char[] KEYSTORE_PASSWORD = "mockresolver".toCharArray();
+    private static final Gson GSON = new Gson();
+
+    private final HttpsServer server;
+    private final ExecutorService executor;
+    // the registered URNs with their urls
+    private final Map<String, List<String>> urns = new ConcurrentHashMap<>();
+    // additional time the creation of single URNs takes
+    private final Map<String, Long> creationDelays = new ConcurrentHashMap<>();
+    // Retry-After in seconds of single URNs whose creation is always throttled
+    private final Map<String, Long> throttledCreations = new ConcurrentHashMap<>();
+
+    @Getter
+    private final AtomicInteger createRequests = new AtomicInteger();
+    @Getter
+    private final AtomicInteger patchRequests = new AtomicInteger();
+    @Getter
+    private final AtomicInteger throttledRequests = new AtomicInteger();
+    @Getter
+    private final AtomicInteger failedRequests = new AtomicInteger();
+
+    // minimal time every request takes
+    @Getter
+    @Setter
+    private volatile long latencyMillis = 0;
+    // maximal random time that is added to the latency
+    @Getter
+    @Setter
+    private volatile long jitterMillis = 0;
+    // probability of a 429 response with Retry-After: 0
+    @Getter
+    @Setter
+    private volatile double throttleRate = 0;
+    // probability of a 500 response
+    @Getter
+    @Setter
+    private volatile double errorRate = 0;
+
+    /**
+     * starts the resolver on a free port of localhost
+     *
+     * @throws Exception if the server could not be started
+     */
+    public MockUrnResolver() throws Exception {
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(createServerSslContext()));
+        server.createContext("/v2/urns", this::handle);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the API URI of the resolver, to be used as apiUri
+     */
+    public String getUri() {
+        return "https://localhost:" + server.getAddress().getPort() + "/v2/";
+    }
+
+    /**
+     * @return an SSL context that trusts the certificate of the resolver
+     * @throws Exception if the key store could not be read
+     */
+    public static SSLContext createClientSslContext() throws Exception {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(loadKeyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
+    private static SSLContext createServerSslContext() throws Exception {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(loadKeyStore(), KEYSTORE_PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private static KeyStore loadKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = MockUrnResolver.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        return keyStore;
+    }
+
+    /**
+     * registers a URN as if it had been created before
+     *
+     * @param urn the URN
+     * @param urls its urls
+     */
+    public void addUrn(String urn, List<String> urls) {
+        urns.put(urn, new ArrayList<>(urls));
+    }
+
+    /**
+     * lets the creation of the URN take longer than the other requests, e.g. to keep it in flight while the client aborts
+     *
+     * @param urn the URN
+     * @param millis additional time in milliseconds before the URN is created
+     */
+    public void delayCreation(String urn, long millis) {
+        creationDelays.put(urn, millis);
+    }
+
+    /**
+     * answers every creation of the URN with 429, e.g. to keep the client waiting for the next attempt while it aborts
+     *
+     * @param urn the URN
+     * @param retryAfterSeconds value of the Retry-After header
+     */
+    public void throttleCreation(String urn, long retryAfterSeconds) {
+        throttledCreations.put(urn, retryAfterSeconds);
+    }
+
+    /**
+     * @param urn the URN
+     * @return the registered urls of the URN or null if it does not exist
+     */
+    public List<String> getUrls(String urn) {
+        return urns.get(urn);
+    }
+
+    /**
+     * @return number of registered URNs
+     */
+    public int getUrnCount() {
+        return urns.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization == null || !authorization.startsWith("Basic ")) {
+                sendError(exchange, 401, "UNAUTHORIZED", "missing credentials");
+                return;
+            }
+            if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+                throttledRequests.incrementAndGet();
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                sendError(exchange, 429, "TOO_MANY_REQUESTS", "slow down");
+                return;
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failedRequests.incrementAndGet();
+                sendError(exchange, 500, "INTERNAL_ERROR", "injected error");
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if ("POST".equals(method) && "/v2/urns".equals(path)) {
+                createUrn(exchange);
+            } else if ("GET".equals(method) && path.startsWith("/v2/urns/urn/") && !path.endsWith("/my-urls")) {
+                getUrn(exchange, path.substring("/v2/urns/urn/".length()));
+            } else if ("PATCH".equals(method) && path.startsWith("/v2/urns/urn/") && path.endsWith("/my-urls")) {
+                replaceUrls(exchange, path.substring("/v2/urns/urn/".length(), path.length() - "/my-urls".length()));
+            } else {
+                sendError(exchange, 404, "NOT_FOUND", "unknown resource " + method + " " + path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void createUrn(HttpExchange exchange) throws IOException, InterruptedException {
+        createRequests.incrementAndGet();
+        JsonObject body = readBody(exchange).getAsJsonObject();
+        String urn = body.get("urn").getAsString();
+        Long retryAfter = throttledCreations.get(urn);
+        if (retryAfter != null) {
+            throttledRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+            sendError(exchange, 429, "TOO_MANY_REQUESTS", "slow down");
+            return;
+        }
+        Long delay = creationDelays.get(urn);
+        if (delay != null) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+        if (urns.putIfAbsent(urn, readUrls(body.getAsJsonArray("urls"))) != null) {
+            sendError(exchange, 409, "URN_ALREADY_EXISTS", "URN " + urn + " already exists");
+            return;
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("urn", urn);
+        response.addProperty("created", Instant.now().toString());
+        send(exchange, 201, GSON.toJson(response));
+    }
+
+    private void getUrn(HttpExchange exchange, String urn) throws IOException {
+        if (!urns.containsKey(urn)) {
+            sendError(exchange, 404, "URN_NOT_FOUND", "URN " + urn + " does not exist");
+            return;
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("urn", urn);
+        send(exchange, 200, GSON.toJson(response));
+    }
+
+    private void replaceUrls(HttpExchange exchange, String urn) throws IOException {
+        patchRequests.incrementAndGet();
+        List<String> urls = readUrls(readBody(exchange).getAsJsonArray());
+        if (urns.computeIfPresent(urn, (k, v) -> urls) == null) {
+            sendError(exchange, 404, "URN_NOT_FOUND", "URN " + urn + " does not exist");
+            return;
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private static JsonElement readBody(HttpExchange exchange) throws IOException {
+        try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            return GSON.fromJson(reader, JsonElement.class);
+        }
+    }
+
+    private static List<String> readUrls(JsonArray array) {
+        List<String> urls = new ArrayList<>();
+        if (array != null) {
+            for (JsonElement element : array) {
+                urls.add(element.getAsJsonObject().get("url").getAsString());
+            }
+        }
+        return urls;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("developerMessage", message);
+        error.addProperty("status", status);
+        send(exchange, status, GSON.toJson(error));
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * stops the resolver
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
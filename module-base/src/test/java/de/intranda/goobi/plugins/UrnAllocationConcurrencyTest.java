@@ -0,0 +1,210 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Compares the throughput of the old allocation with LOCK TABLE and the lock free allocation with 32 parallel step executions and checks that the
+ * open transaction of a new topmost entry is not touched by other entries. The test needs a MySQL database and is skipped unless it is started
+ * with -Durn.test.jdbcUrl=jdbc:mysql://... (and optionally -Durn.test.user and -Durn.test.password).
+ */
+@Log4j2
+public class UrnAllocationConcurrencyTest {
+
+    private static final int PARALLEL_STEPS = 32;
+    private static final int STEPS_PER_THREAD = 5;
+    private static final int ELEMENTS_PER_STEP = 20;
+    private static final String TEST_PREFIX = "urn-concurrency-test-";
+
+    private static String jdbcUrl;
+    private static String user;
+    private static String password;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        jdbcUrl = System.getProperty("urn.test.jdbcUrl");
+        Assume.assumeNotNull(jdbcUrl);
+        user = System.getProperty("urn.test.user", "goobi");
+        password = System.getProperty("urn.test.password", "goobi");
+        try (Connection con = openConnection(); Statement create = con.createStatement()) {
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS urn_table (urn_id INT(10) UNSIGNED NOT NULL AUTO_INCREMENT, werk_id VARCHAR(255), "
+                    + "struktur_typ VARCHAR(255), urn VARCHAR(255), PRIMARY KEY (urn_id))");
+            UrnDatabaseSchema.ensureSchema(con);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (jdbcUrl == null) {
+            return;
+        }
+        try (Connection con = openConnection(); PreparedStatement delete = con.prepareStatement("DELETE FROM urn_table WHERE werk_id LIKE ?")) {
+            delete.setString(1, TEST_PREFIX + "%");
+            delete.executeUpdate();
+        }
+    }
+
+    @Test
+    public void testLockFreeAllocationThroughput() throws Exception {
+        double before = runParallelSteps("before-", true);
+        double after = runParallelSteps("after-", false);
+        log.info("URN allocation with " + PARALLEL_STEPS + " parallel steps: LOCK TABLE " + String.format("%.1f", before) + " steps/s, lock free "
+                + String.format("%.1f", after) + " steps/s");
+
+        // the anchor is shared by all steps and must exist exactly once
+        assertEquals(1, countRows(TEST_PREFIX + "after-anchor", "Periodical"));
+        for (int i = 0; i < PARALLEL_STEPS * STEPS_PER_THREAD; i++) {
+            assertEquals(1, countRows(TEST_PREFIX + "after-volume-" + i, "Volume"));
+            assertEquals(ELEMENTS_PER_STEP, countRows(TEST_PREFIX + "after-volume-" + i, "Article"));
+        }
+    }
+
+    @Test
+    public void testUnfinishedTopmostEntryIsIsolated() throws Exception {
+        String workId = TEST_PREFIX + "isolated";
+        try (Connection con = openConnection(); UrnMySqlRepository repository = new UrnMySqlRepository(-1, 10, new UrnDatabaseSession(con))) {
+            Urn volume = repository.allocateTopmost(workId, "Volume");
+            // neither a new block of ids nor the removal of another entry may commit or roll back the open transaction of the volume
+            try {
+                repository.nextId();
+                fail("reserved a block inside of the transaction of the volume");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                repository.delete(volume.getId() + 1);
+                fail("removed another entry inside of the transaction of the volume");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            volume.setUrn("urn:test-isolated-" + volume.getId());
+            assertTrue(repository.writeUrn(volume, null));
+            assertTrue(repository.nextId() > volume.getId());
+        }
+        assertEquals(1, countRows(workId, "Volume"));
+    }
+
+    private double runParallelSteps(String runPrefix, boolean locked) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_STEPS);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int thread = 0; thread < PARALLEL_STEPS; thread++) {
+            int firstStep = thread * STEPS_PER_THREAD;
+            futures.add(executor.submit(() -> {
+                for (int step = firstStep; step < firstStep + STEPS_PER_THREAD; step++) {
+                    if (locked) {
+                        runLockedStep(runPrefix, step);
+                    } else {
+                        runLockFreeStep(runPrefix, step);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return PARALLEL_STEPS * STEPS_PER_THREAD / seconds;
+    }
+
+    /**
+     * allocation as it was done before: one LOCK TABLE per element
+     */
+    private void runLockedStep(String runPrefix, int step) throws SQLException {
+        try (Connection con = openConnection()) {
+            lockedAllocation(con, TEST_PREFIX + runPrefix + "anchor", "Periodical", true);
+            lockedAllocation(con, TEST_PREFIX + runPrefix + "volume-" + step, "Volume", true);
+            for (int i = 0; i < ELEMENTS_PER_STEP; i++) {
+                lockedAllocation(con, TEST_PREFIX + runPrefix + "volume-" + step, "Article", false);
+            }
+        }
+    }
+
+    private void runLockFreeStep(String runPrefix, int step) throws SQLException, UrnDatabaseException {
+        try (Connection con = openConnection(); UrnDatabaseSession session = new UrnDatabaseSession(con)) {
+            UrnMySqlRepository.allocateTopmostEntry(session, TEST_PREFIX + runPrefix + "anchor", "Periodical");
+            session.commit();
+            UrnMySqlRepository.allocateTopmostEntry(session, TEST_PREFIX + runPrefix + "volume-" + step, "Volume");
+            session.commit();
+            session.beginTransaction();
+            List<Integer> ids = UrnIdBlockAllocator.insertReservedRows(session, ELEMENTS_PER_STEP);
+            session.commit();
+            PreparedStatement claim = session.prepare("UPDATE urn_table SET werk_id = ?, struktur_typ = ?, urn = ? WHERE urn_id = ?");
+            for (int id : ids) {
+                claim.setString(1, TEST_PREFIX + runPrefix + "volume-" + step);
+                claim.setString(2, "Article");
+                claim.setString(3, "urn:test-" + id);
+                claim.setInt(4, id);
+                claim.executeUpdate();
+            }
+        }
+    }
+
+    private void lockedAllocation(Connection con, String workID, String structType, boolean topmost) throws SQLException {
+        try (Statement lock = con.createStatement()) {
+            lock.executeUpdate("LOCK TABLE urn_table WRITE");
+        }
+        try {
+            if (topmost) {
+                try (PreparedStatement query = con.prepareStatement("SELECT urn_id FROM urn_table WHERE werk_id = ? AND struktur_typ = ?")) {
+                    query.setString(1, workID);
+                    query.setString(2, structType);
+                    try (ResultSet rs = query.executeQuery()) {
+                        if (rs.next()) {
+                            return;
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement insert = con.prepareStatement("INSERT INTO urn_table (werk_id, struktur_typ) VALUES (?, ?)")) {
+                insert.setString(1, workID);
+                insert.setString(2, structType);
+                insert.executeUpdate();
+            }
+        } finally {
+            try (Statement unlock = con.createStatement()) {
+                unlock.executeUpdate("UNLOCK TABLES");
+            }
+        }
+    }
+
+    private int countRows(String workID, String structType) throws SQLException {
+        try (Connection con = openConnection();
+                PreparedStatement query = con.prepareStatement("SELECT COUNT(*) FROM urn_table WHERE werk_id = ? AND struktur_typ = ?")) {
+            query.setString(1, workID);
+            query.setString(2, structType);
+            try (ResultSet rs = query.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, user, password);
+    }
+}
@@ -0,0 +1,136 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.Process;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ugh.dl.Prefs;
+
+/**
+ * Runs a batch of processes against the local {@link MockUrnResolver} and an {@link UrnInMemoryRepository}. No network and no database are
+ * needed.
+ */
+public class UrnBatchRunnerTest {
+
+    private static final String NAMESPACE = "urn:nbn:de:batch";
+    private static final String URL = "https://viewer.example.org/viewer/resolver?urn={pi.urn}";
+
+    private static MockUrnResolver resolver;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        resolver = new MockUrnResolver();
+        resolver.setLatencyMillis(2);
+        UrnHttpClientRegistry.setSslContext(MockUrnResolver.createClientSslContext());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        UrnHttpClientRegistry.closeAll();
+        UrnHttpClientRegistry.setSslContext(null);
+        resolver.close();
+    }
+
+    @Test
+    public void testProcessesAreRegisteredInParallel() throws Exception {
+        UrnInMemoryRepository repository = new UrnInMemoryRepository();
+        Map<Integer, UrnTestProcess> processes = new HashMap<>();
+        processes.put(1, new UrnTestProcess(1, "PPN-batch-1", 2));
+        processes.put(2, new UrnTestProcess(2, "PPN-batch-2", 3));
+        TestBatchRunner runner = new TestBatchRunner(processes, repository);
+
+        List<UrnBatchRunner.ProcessResult> results = runner.run(Arrays.asList(1, 2, 3));
+
+        assertEquals(3, results.size());
+        assertEquals(1, results.get(0).getProcessId());
+        assertTrue(results.get(0).isSuccessful());
+        assertEquals(2, results.get(1).getProcessId());
+        assertTrue(results.get(1).isSuccessful());
+        // an unknown process fails without stopping the others
+        assertFalse(results.get(2).isSuccessful());
+        assertEquals("Process not found", results.get(2).getMessage());
+
+        // every monograph and chapter got its own registered URN, the document was written once per process
+        Set<String> urns = new HashSet<>();
+        for (UrnTestProcess process : processes.values()) {
+            assertEquals(1, process.getWriteCount());
+            for (String urn : process.getMetsUrns()) {
+                assertNotNull(urn);
+                assertTrue(urn.startsWith(NAMESPACE + "-"));
+                assertNotNull(resolver.getUrls(urn));
+                assertTrue(repository.containsUrn(urn));
+                urns.add(urn);
+            }
+        }
+        assertEquals(7, urns.size());
+        assertEquals(7, repository.size());
+    }
+
+    /**
+     * a runner that takes the processes from a map and runs the plugin without database
+     */
+    private static class TestBatchRunner extends UrnBatchRunner {
+        private final Map<Integer, UrnTestProcess> processes;
+        private final UrnInMemoryRepository repository;
+        private final UrnConfiguration configuration;
+
+        private TestBatchRunner(Map<Integer, UrnTestProcess> processes, UrnInMemoryRepository repository) throws Exception {
+            super(2);
+            this.processes = processes;
+            this.repository = repository;
+            XMLConfiguration xml = new XMLConfiguration();
+            xml.load(new StringReader("<config_plugin><config><apiUri>" + resolver.getUri() + "</apiUri><namespace>" + NAMESPACE + "</namespace>"
+                    + "<url>" + URL + "</url><preScan>false</preScan><parallelRequests>2</parallelRequests>"
+                    + "<allowed><type>Chapter</type></allowed></config></config_plugin>"));
+            configuration = new UrnConfiguration(xml.configurationAt("config"));
+        }
+
+        @Override
+        Process loadProcess(int processId) {
+            return processes.get(processId);
+        }
+
+        @Override
+        UrnConfiguration getConfiguration(Process process) {
+            return configuration;
+        }
+
+        @Override
+        UrnRestClient createClient(UrnConfiguration configuration) {
+            return new UrnRestClient(resolver.getUri(), NAMESPACE, "user", "password", 4, null);
+        }
+
+        @Override
+        Prefs getPreferences(Process process) {
+            try {
+                return UrnTestProcess.getPrefs();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        UrnStepPlugin createPlugin() {
+            UrnStepPlugin plugin = new UrnStepPlugin();
+            plugin.setRepository(repository);
+            plugin.setCheckpoint(new InMemoryCheckpoint());
+            plugin.setUrlFingerprints(new InMemoryFingerprints());
+            return plugin;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The test needs a MySQL database and is skipped unless it is started with -Durn.test.jdbcUrl=jdbc:mysql://... (and optionally -Durn.test.user
+ * and -Durn.test.password).
+ */
+public class UrnCheckpointTest {
+
+    private static final int PROCESS_ID = -4711;
+
+    private static String jdbcUrl;
+    private static String user;
+    private static String password;
+
+    @BeforeClass
+    public static void setUpClass() {
+        jdbcUrl = System.getProperty("urn.test.jdbcUrl");
+        Assume.assumeNotNull(jdbcUrl);
+        user = System.getProperty("urn.test.user", "goobi");
+        password = System.getProperty("urn.test.password", "goobi");
+    }
+
+    @Test
+    public void testResumeOnlyUnchangedMetsFile() throws Exception {
+        try (Connection con = openConnection(); UrnCheckpoint checkpoint = new UrnCheckpoint(PROCESS_ID, 1000, new UrnDatabaseSession(con))) {
+            // leftovers of an earlier test run
+            checkpoint.load();
+            checkpoint.clear();
+            checkpoint.store("0|Monograph", "urn:nbn:de:test-1");
+            checkpoint.store("0/3|Chapter", "urn:nbn:de:test-2");
+        }
+
+        // the next run of the unchanged file gets the URNs back
+        try (Connection con = openConnection(); UrnCheckpoint checkpoint = new UrnCheckpoint(PROCESS_ID, 1000, new UrnDatabaseSession(con))) {
+            Map<String, String> urns = checkpoint.load();
+            assertEquals(2, urns.size());
+            assertEquals("urn:nbn:de:test-2", urns.get("0/3|Chapter"));
+        }
+
+        // the file was changed in the meantime, the positions of the elements are not reliable anymore
+        try (Connection con = openConnection(); UrnCheckpoint checkpoint = new UrnCheckpoint(PROCESS_ID, 2000, new UrnDatabaseSession(con))) {
+            assertTrue(checkpoint.load().isEmpty());
+            checkpoint.store("0|Monograph", "urn:nbn:de:test-3");
+            checkpoint.clear();
+        }
+        try (Connection con = openConnection(); UrnCheckpoint checkpoint = new UrnCheckpoint(PROCESS_ID, 2000, new UrnDatabaseSession(con))) {
+            assertTrue(checkpoint.load().isEmpty());
+        }
+    }
+
+    @Test
+    public void testSharedSessionStaysOpen() throws Exception {
+        try (Connection con = openConnection(); UrnDatabaseSession session = new UrnDatabaseSession(con)) {
+            try (UrnCheckpoint checkpoint = new UrnCheckpoint(PROCESS_ID, 3000, session)) {
+                checkpoint.load();
+                checkpoint.store("0|Monograph", "urn:nbn:de:test-4");
+            }
+            // the session belongs to the run, the next component of the run still uses it
+            try (UrnCheckpoint checkpoint = new UrnCheckpoint(PROCESS_ID, 3000, session)) {
+                assertEquals("urn:nbn:de:test-4", checkpoint.load().get("0|Monograph"));
+                checkpoint.clear();
+            }
+        }
+    }
+
+    private static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, user, password);
+    }
+}
@@ -0,0 +1,75 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrnChecksumTest {
+
+    private static final String URN_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz_.+:-/";
+
+    @Test
+    public void testCalculateMatchesReference() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb = new StringBuilder("urn:nbn:de:gbv:");
+            int length = 1 + random.nextInt(30);
+            for (int j = 0; j < length; j++) {
+                sb.append(URN_CHARACTERS.charAt(random.nextInt(URN_CHARACTERS.length())));
+            }
+            String urn = sb.toString();
+            Assert.assertEquals(urn, referenceChecksum(urn), UrnChecksum.calculate(urn));
+        }
+    }
+
+    @Test
+    public void testIsValidChecksum() {
+        String urn = "urn:nbn:de:gbv:NN-2024101812000042";
+        int checksum = UrnChecksum.calculate(urn);
+        Assert.assertTrue(UrnChecksum.isValidChecksum(urn + checksum));
+        Assert.assertFalse(UrnChecksum.isValidChecksum(urn + ((checksum + 1) % 10)));
+        Assert.assertFalse(UrnChecksum.isValidChecksum(urn + "x"));
+        Assert.assertFalse(UrnChecksum.isValidChecksum("urn:nbn:de:gbv:NN-\u00e4\u00f61"));
+        Assert.assertFalse(UrnChecksum.isValidChecksum(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCalculateRejectsUnmappedCharacters() {
+        UrnChecksum.calculate("urn:nbn:de:gbv:NN-\u00e4");
+    }
+
+    /**
+     * the calculation as it was done before, used as reference
+     */
+    private static int referenceChecksum(String urn) {
+        Map<Character, Integer> table = new HashMap<>();
+        String characters = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_.+:-/";
+        int[] values = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 41, 18, 14, 19, 15, 16, 21, 22, 23, 24, 25, 42, 26, 27, 13, 28, 29, 31, 12, 32, 33, 11, 34, 35,
+                36, 37, 38, 43, 47, 49, 17, 39, 45 };
+        for (int i = 0; i < values.length; i++) {
+            table.put(characters.charAt(i), values[i]);
+        }
+        List<Integer> digits = new ArrayList<>();
+        for (char c : urn.toUpperCase().toCharArray()) {
+            int currDigit = table.get(c);
+            if (currDigit < 10) {
+                digits.add(currDigit);
+            } else {
+                digits.add(currDigit / 10);
+                digits.add(currDigit % 10);
+            }
+        }
+        int productSum = 0;
+        int count = 0;
+        for (int currDigit : digits) {
+            count++;
+            productSum += currDigit * count;
+        }
+        return (productSum / digits.get(digits.size() - 1)) % 10;
+    }
+}
@@ -0,0 +1,124 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrnCircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testOpensAfterFailuresInARow() throws Exception {
+        UrnCircuitBreaker breaker = new UrnCircuitBreaker("https://example.org/", 3, 1000, now::get);
+        for (int i = 0; i < 2; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        breaker.acquire();
+        breaker.onSuccess();
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        Assert.assertEquals(UrnCircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            Assert.fail("the open breaker must reject the request");
+        } catch (UrnCircuitOpenException e) {
+            Assert.assertTrue(e.getMessage().contains("https://example.org/"));
+        }
+        Assert.assertEquals(1, breaker.getRejectedRequests());
+    }
+
+    @Test
+    public void testHalfOpenLetsOneProbeThrough() throws Exception {
+        UrnCircuitBreaker breaker = new UrnCircuitBreaker("https://example.org/", 1, 1000, now::get);
+        breaker.acquire();
+        breaker.onFailure();
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+        breaker.acquire();
+        Assert.assertEquals(UrnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertRejected(breaker);
+
+        // the probe failed, the breaker stays open for another period
+        breaker.onFailure();
+        Assert.assertEquals(UrnCircuitBreaker.State.OPEN, breaker.getState());
+        now.set(TimeUnit.MILLISECONDS.toNanos(1999));
+        assertRejected(breaker);
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(2000));
+        breaker.acquire();
+        breaker.onSuccess();
+        Assert.assertEquals(UrnCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+        breaker.acquire();
+    }
+
+    @Test
+    public void testCancelledProbeAllowsNextProbe() throws Exception {
+        UrnCircuitBreaker breaker = new UrnCircuitBreaker("https://example.org/", 1, 0, now::get);
+        breaker.acquire();
+        breaker.onFailure();
+        breaker.acquire();
+        breaker.onCancel();
+        breaker.acquire();
+        Assert.assertEquals(UrnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        UrnCircuitBreaker breaker = new UrnCircuitBreaker("https://example.org/", 0, 1000, now::get);
+        for (int i = 0; i < 10; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        Assert.assertEquals(UrnCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testClientFailsFastWhileResolverIsDown() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        // nothing listens on the port anymore
+        UrnRestClient client = new UrnRestClient("https://127.0.0.1:" + port + "/v2/", "urn:nbn:de:test", "user", "password", 1, null);
+        client.configureTimeouts(1000, 1000, 1000);
+        client.configureCircuitBreaker(2, 60000);
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.urnExists("urn:nbn:de:test-1");
+                Assert.fail("the resolver is not available");
+            } catch (UrnCircuitOpenException e) {
+                Assert.fail("the breaker must not open before the threshold");
+            } catch (IOException e) {
+                // connection refused
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            client.registerUrn("urn:nbn:de:test-1", Collections.singletonList("https://example.org"));
+            Assert.fail("the open breaker must reject the request");
+        } catch (UrnCircuitOpenException e) {
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        } finally {
+            UrnHttpClientRegistry.closeAll();
+        }
+    }
+
+    private static void assertRejected(UrnCircuitBreaker breaker) {
+        try {
+            breaker.acquire();
+            Assert.fail("the request must be rejected");
+        } catch (UrnCircuitOpenException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The test needs a MySQL database and is skipped unless it is started with -Durn.test.jdbcUrl=jdbc:mysql://... (and optionally -Durn.test.user
+ * and -Durn.test.password).
+ */
+public class UrnDatabaseSchemaTest {
+
+    private static String jdbcUrl;
+    private static String user;
+    private static String password;
+
+    @BeforeClass
+    public static void setUpClass() throws SQLException {
+        jdbcUrl = System.getProperty("urn.test.jdbcUrl");
+        Assume.assumeNotNull(jdbcUrl);
+        user = System.getProperty("urn.test.user", "goobi");
+        password = System.getProperty("urn.test.password", "goobi");
+        try (Connection con = openConnection(); Statement create = con.createStatement()) {
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS urn_table (urn_id INT(10) UNSIGNED NOT NULL AUTO_INCREMENT, werk_id VARCHAR(255), "
+                    + "struktur_typ VARCHAR(255), urn VARCHAR(255), PRIMARY KEY (urn_id))");
+        }
+    }
+
+    @Test
+    public void testMigrationsAreAppliedOnce() throws SQLException {
+        try (Connection con = openConnection()) {
+            UrnDatabaseSchema.reset();
+            UrnDatabaseSchema.ensureSchema(con);
+            assertEquals(UrnDatabaseSchema.getLatestVersion(), UrnDatabaseSchema.getAppliedVersions(con).size());
+            assertTrue(UrnDatabaseSchema.indexExists(con, false, "werk_id", "struktur_typ"));
+            assertTrue(UrnDatabaseSchema.indexExists(con, true, "urn"));
+            assertTrue(UrnDatabaseSchema.indexExists(con, true, UrnDatabaseSchema.TOPMOST_KEY_COLUMN_NAME));
+
+            // a second start finds nothing to do
+            UrnDatabaseSchema.reset();
+            UrnDatabaseSchema.ensureSchema(con);
+            assertEquals(UrnDatabaseSchema.getLatestVersion(), UrnDatabaseSchema.getAppliedVersions(con).size());
+        }
+    }
+
+    private static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, user, password);
+    }
+}
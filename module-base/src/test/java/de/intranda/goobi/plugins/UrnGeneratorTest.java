@@ -3,6 +3,8 @@ package de.intranda.goobi.plugins;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.junit.Test;
 import org.junit.Assert;
@@ -22,4 +24,24 @@ public class UrnGeneratorTest {
 
     }
 
+    @Test
+    public void testTimeStampIsMonotonic() {
+        String previous = UrnGenerator.generateTimeStamp();
+        for (int i = 0; i < 10000; i++) {
+            String current = UrnGenerator.generateTimeStamp();
+            Assert.assertTrue(previous + " > " + current, previous.compareTo(current) <= 0);
+            previous = current;
+        }
+    }
+
+    @Test
+    public void testTimestampUrnsAreUnique() {
+        UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.TIMESTAMP, true, -1);
+        Set<String> urns = new HashSet<>();
+        for (int id = 1; id <= 1000; id++) {
+            String urn = generator.generateUrn("urn:nbn:de:test", null, new Urn(id, null, false));
+            Assert.assertTrue("Duplicate URN " + urn, urns.add(urn));
+        }
+    }
+
 }
@@ -0,0 +1,36 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class UrnHttpClientRegistryTest {
+
+    private static final String API_URI = "https://registry.test/v2/";
+
+    @After
+    public void tearDown() {
+        UrnHttpClientRegistry.closeAll();
+    }
+
+    @Test
+    public void testPoolIsNeverReduced() {
+        UrnHttpClientRegistry.UrnHttpClient client = UrnHttpClientRegistry.getClient(API_URI, "Basic dGVzdA==", null, 32);
+        assertEquals(32, client.getMaxConnectionsPerRoute());
+
+        // a step with the default or a smaller pool shares the client of the running step
+        assertSame(client, UrnHttpClientRegistry.getClient(API_URI, "Basic dGVzdA==", null, 0));
+        assertSame(client, UrnHttpClientRegistry.getClient(API_URI, "Basic dGVzdA==", null, 4));
+        assertEquals(32, client.getMaxConnectionsPerRoute());
+
+        UrnHttpClientRegistry.getClient(API_URI, "Basic dGVzdA==", null, 64);
+        assertEquals(64, client.getMaxConnectionsPerRoute());
+    }
+
+    @Test
+    public void testNewClientUsesDefault() {
+        assertEquals(10, UrnHttpClientRegistry.getClient(API_URI, "Basic ZGVmYXVsdA==", null, 0).getMaxConnectionsPerRoute());
+    }
+}
@@ -0,0 +1,106 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrnInMemoryRepositoryTest {
+
+    @Test
+    public void testTopmostEntryExistsOnce() throws Exception {
+        UrnInMemoryRepository repository = new UrnInMemoryRepository();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Integer>> allocations = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            allocations.add(() -> {
+                UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.INCREMENT, false, repository);
+                return generator.getUrnId("PPN123", "Periodical", true).getId();
+            });
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (Future<Integer> id : executor.invokeAll(allocations)) {
+            ids.add(id.get());
+        }
+        executor.shutdown();
+        Assert.assertEquals(1, ids.size());
+        Assert.assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void testWriteAndRemove() throws Exception {
+        UrnInMemoryRepository repository = new UrnInMemoryRepository();
+        try (UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.INCREMENT, true, repository)) {
+            Urn volume = generator.getUrnId("PPN123", "Volume", true);
+            Assert.assertFalse(volume.isOldEntry());
+            volume.setUrn(generator.generateUrn("urn:nbn:de:test", null, volume));
+            Assert.assertTrue(generator.writeUrnToDatabase(volume));
+            Assert.assertTrue(repository.containsUrn(volume.getUrn()));
+
+            Urn existing = generator.getUrnId("PPN123", "Volume", true);
+            Assert.assertTrue(existing.isOldEntry());
+            Assert.assertEquals(volume.getUrn(), existing.getUrn());
+            Assert.assertFalse(generator.writeUrnToDatabase(existing));
+
+            Urn chapter = generator.getUrnId("PPN123", "Chapter", false);
+            Assert.assertNotEquals(volume.getId(), chapter.getId());
+            chapter.setUrn(generator.generateUrn("urn:nbn:de:test", null, chapter));
+            Assert.assertTrue(generator.writeUrnToDatabase(chapter));
+
+            Assert.assertTrue(generator.removeUrnId(volume.getId()));
+            Assert.assertFalse(repository.containsUrn(volume.getUrn()));
+            Assert.assertNull(repository.findTopmost("PPN123", "Volume"));
+            Assert.assertEquals(1, repository.size());
+        }
+    }
+
+    @Test
+    public void testUrnIsUnique() throws Exception {
+        UrnInMemoryRepository repository = new UrnInMemoryRepository();
+        UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.INCREMENT, false, repository);
+        Urn first = generator.getUrnId("PPN123", "Chapter", false);
+        Urn second = generator.getUrnId("PPN123", "Chapter", false);
+        first.setUrn("urn:nbn:de:test-1");
+        second.setUrn("urn:nbn:de:test-1");
+        Assert.assertTrue(generator.writeUrnToDatabase(first));
+        Assert.assertFalse(generator.writeUrnToDatabase(second));
+        Assert.assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void testAssignBeforeRegistration() throws Exception {
+        UrnInMemoryRepository repository = new UrnInMemoryRepository();
+        UrnGenerator increment = new UrnGenerator(UrnGenerationMethod.INCREMENT, false, repository);
+        Urn chapter = increment.getUrnId("PPN123", "Chapter", false);
+        increment.assignUrnId(chapter, increment.generateUrn("urn:nbn:de:test", null, chapter));
+        // the entry exists before its URN is written, the URN can be derived from its id
+        Assert.assertEquals(1, repository.size());
+        Assert.assertFalse(repository.containsUrn("urn:nbn:de:test-" + chapter.getId()));
+
+        // timestamped URNs are stored right away
+        UrnGenerator timestamp = new UrnGenerator(UrnGenerationMethod.TIMESTAMP, false, repository);
+        Urn section = timestamp.getUrnId("PPN123", "Chapter", false);
+        String sectionUrn = timestamp.generateUrn("urn:nbn:de:test", null, section);
+        timestamp.assignUrnId(section, sectionUrn);
+        Assert.assertTrue(repository.containsUrn(sectionUrn));
+        section.setUrn(sectionUrn);
+        Assert.assertTrue(timestamp.writeUrnToDatabase(section));
+        Assert.assertEquals(2, repository.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testQueueNeedsOutbox() throws Exception {
+        UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.INCREMENT, false, new UrnInMemoryRepository());
+        Urn urn = generator.getUrnId("PPN123", "Chapter", false);
+        urn.setUrn("urn:nbn:de:test-1");
+        generator.queueRegistration(urn, Collections.singletonList("https://example.org"));
+    }
+}
@@ -0,0 +1,74 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import de.intranda.goobi.plugins.messages.ErrorMessage;
+import de.intranda.goobi.plugins.messages.UrlListMessage;
+import de.intranda.goobi.plugins.messages.UrnCreationMessage;
+import de.intranda.goobi.plugins.messages.UrnCreationSuccessfulMessage;
+import de.intranda.goobi.plugins.messages.UrnJsonCodec;
+
+public class UrnJsonCodecTest {
+
+    private static final String URN = "urn:nbn:de:gbv:NN-2026101812000042";
+    private static final List<String> URLS =
+            Arrays.asList("https://viewer.example.org/viewer/resolver?urn={pi.urn}", "https://example.org/<a>&b='c'/\u00e4");
+
+    @Test
+    public void testBodiesMatchGson() throws Exception {
+        // the stored url fingerprints are hashes of these bodies, they must not change
+        List<UrlListMessage> urlMessages = new ArrayList<>();
+        for (String url : URLS) {
+            urlMessages.add(new UrlListMessage().setUrl(url.replace("{pi.urn}", URN)));
+        }
+        Gson gson = new Gson();
+        String createBody = gson.toJson(new UrnCreationMessage().setUrn(URN).setUrls(urlMessages));
+        String replaceBody = gson.toJson(urlMessages);
+
+        Assert.assertEquals(createBody, UrnJsonCodec.createUrnJson(URN, URLS));
+        Assert.assertEquals(replaceBody, UrnJsonCodec.replaceUrlsJson(URN, URLS));
+
+        HttpEntity entity = UrnJsonCodec.createUrnEntity(URN, URLS);
+        Assert.assertTrue(entity.isRepeatable());
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeTo(out);
+            Assert.assertEquals(createBody, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testReadResponses() throws Exception {
+        UrnCreationSuccessfulMessage created = UrnJsonCodec.readCreationSuccessful(
+                json("{\"urn\":\"" + URN + "\",\"created\":\"2026-10-18T12:00:00Z\",\"self\":\"https://example.org\"}"));
+        Assert.assertEquals(URN, created.getUrn());
+
+        ErrorMessage error = UrnJsonCodec.readError(json("{\"code\":\"URN_ALREADY_EXISTS\",\"status\":409}"));
+        Assert.assertEquals("URN_ALREADY_EXISTS", error.getCode());
+        Assert.assertEquals(409, error.getStatus());
+
+        Assert.assertNull(UrnJsonCodec.readError(json("")));
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void testReadInvalidResponse() throws Exception {
+        UrnJsonCodec.readCreationSuccessful(json("[\"urn\"]"));
+    }
+
+    private static HttpEntity json(String body) {
+        return new StringEntity(body, ContentType.APPLICATION_JSON);
+    }
+}
@@ -0,0 +1,49 @@
+package de.intranda.goobi.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrnMetricsTest {
+
+    @Test
+    public void testQuantilesAndPrometheusText() {
+        UrnMetrics metrics = UrnMetrics.getInstance();
+        UrnMetrics.Recorder recorder = metrics.recorder("metrics-test", "https://resolver.example.org/");
+        long now = System.nanoTime();
+        for (int i = 1; i <= 100; i++) {
+            // 1 to 100 milliseconds
+            recorder.record(UrnMetrics.Phase.POST, now - i * 1_000_000L);
+        }
+        recorder.count(UrnMetrics.Outcome.CREATED);
+
+        String key = "post{project=\"metrics-test\",endpoint=\"https://resolver.example.org/\"}";
+        Assert.assertEquals(Long.valueOf(100), metrics.getPhaseCounts().get(key));
+        double median = metrics.getMedianMillis().get(key);
+        Assert.assertTrue("median " + median, median >= 25 && median <= 100);
+        double p99 = metrics.getPercentile99Millis().get(key);
+        Assert.assertTrue("p99 " + p99, p99 >= median && p99 <= 250);
+
+        String text = metrics.getPrometheusText();
+        Assert.assertTrue(text.contains("urn_phase_duration_seconds_count{phase=\"post\",project=\"metrics-test\","
+                + "endpoint=\"https://resolver.example.org/\"} 100"));
+        Assert.assertTrue(text.contains("urn_elements_total{outcome=\"created\",project=\"metrics-test\","
+                + "endpoint=\"https://resolver.example.org/\"} 1"));
+    }
+
+    @Test
+    public void testRateLimiterState() {
+        String endpoint = "https://limiter.example.org/";
+        UrnRateLimiter limiter = UrnRateLimiter.getInstance(endpoint, 8);
+        limiter.onThrottle(0);
+
+        UrnMetrics metrics = UrnMetrics.getInstance();
+        Assert.assertEquals(Integer.valueOf(4), metrics.getConcurrencyLimits().get(endpoint));
+        Assert.assertEquals(Long.valueOf(1), metrics.getThrottledRequests().get(endpoint));
+        Assert.assertEquals(Double.valueOf(0), metrics.getRequestsPerSecond().get(endpoint));
+
+        String text = metrics.getPrometheusText();
+        Assert.assertTrue(text.contains("urn_concurrency_limit{endpoint=\"https://limiter.example.org/\"} 4"));
+        Assert.assertTrue(text.contains("urn_throttled_requests_total{endpoint=\"https://limiter.example.org/\"} 1"));
+        Assert.assertTrue(text.contains("urn_requests_per_second{endpoint=\"https://limiter.example.org/\"} 0.0"));
+    }
+}
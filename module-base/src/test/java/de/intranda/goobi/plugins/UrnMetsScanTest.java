@@ -0,0 +1,65 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UrnMetsScanTest {
+
+    private static final String META = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:mods=\"http://www.loc.gov/mods/v3\""
+            + " xmlns:goobi=\"http://meta.goobi.org/v1.5.1/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">\n"
+            + "  <mets:dmdSec ID=\"DMDLOG_0001\"><mets:mdWrap MDTYPE=\"MODS\"><mets:xmlData><mods:mods><mods:extension><goobi:goobi>\n"
+            + "    <goobi:metadata name=\"CatalogIDDigital\">PPN123</goobi:metadata>\n"
+            + "    <goobi:metadata name=\"_urn\">urn:nbn:de:test-1</goobi:metadata>\n"
+            + "    <goobi:metadata name=\"URN\">urn:nbn:de:test-1</goobi:metadata>\n"
+            + "    <goobi:metadata type=\"person\" name=\"Author\"><goobi:lastName>Doe</goobi:lastName></goobi:metadata>\n"
+            + "  </goobi:goobi></mods:extension></mods:mods></mets:xmlData></mets:mdWrap></mets:dmdSec>\n"
+            + "  <mets:dmdSec ID=\"DMDLOG_0002\"><mets:mdWrap MDTYPE=\"MODS\"><mets:xmlData><mods:mods><mods:extension><goobi:goobi>\n"
+            + "    <goobi:metadata name=\"TitleDocMain\">Chapter</goobi:metadata>\n"
+            + "  </goobi:goobi></mods:extension></mods:mods></mets:xmlData></mets:mdWrap></mets:dmdSec>\n"
+            + "  <mets:structMap TYPE=\"LOGICAL\">\n"
+            + "    <mets:div ID=\"LOG_0000\" TYPE=\"Periodical\"><mets:mptr xlink:href=\"meta_anchor.xml\"/>\n"
+            + "      <mets:div ID=\"LOG_0001\" DMDID=\"DMDLOG_0001\" TYPE=\"PeriodicalVolume\">\n"
+            + "        <mets:div ID=\"LOG_0002\" DMDID=\"DMDLOG_0002\" TYPE=\"Chapter\"/>\n"
+            + "      </mets:div>\n"
+            + "    </mets:div>\n"
+            + "  </mets:structMap>\n"
+            + "  <mets:structMap TYPE=\"PHYSICAL\"><mets:div ID=\"PHYS_0000\" TYPE=\"BoundBook\"/></mets:structMap>\n"
+            + "</mets:mets>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScanLogicalStructure() throws Exception {
+        Path metaFile = folder.newFile("meta.xml").toPath();
+        Files.write(metaFile, META.getBytes(StandardCharsets.UTF_8));
+
+        List<UrnMetsScan.ScannedElement> elements = UrnMetsScan.scan(metaFile, "_urn", "URN").getElements();
+        Assert.assertEquals(3, elements.size());
+
+        UrnMetsScan.ScannedElement anchor = elements.get(0);
+        Assert.assertTrue(anchor.isAnchor());
+        Assert.assertEquals(0, anchor.getDepth());
+        Assert.assertNull(anchor.getMetsUrn());
+
+        UrnMetsScan.ScannedElement volume = elements.get(1);
+        Assert.assertFalse(volume.isAnchor());
+        Assert.assertEquals("PeriodicalVolume", volume.getType());
+        Assert.assertEquals(1, volume.getDepth());
+        Assert.assertEquals("urn:nbn:de:test-1", volume.getMetsUrn());
+        Assert.assertEquals("urn:nbn:de:test-1", volume.getModsUrn());
+
+        UrnMetsScan.ScannedElement chapter = elements.get(2);
+        Assert.assertEquals(2, chapter.getDepth());
+        Assert.assertNull(chapter.getMetsUrn());
+        Assert.assertNull(chapter.getModsUrn());
+    }
+}
@@ -0,0 +1,94 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The test needs a MySQL database and is skipped unless it is started with -Durn.test.jdbcUrl=jdbc:mysql://... (and optionally -Durn.test.user
+ * and -Durn.test.password).
+ */
+public class UrnOutboxTest {
+
+    private static final String API_URI = "https://outbox.test/v2/";
+
+    private static String jdbcUrl;
+    private static String user;
+    private static String password;
+
+    @BeforeClass
+    public static void setUpClass() throws SQLException {
+        jdbcUrl = System.getProperty("urn.test.jdbcUrl");
+        Assume.assumeNotNull(jdbcUrl);
+        user = System.getProperty("urn.test.user", "goobi");
+        password = System.getProperty("urn.test.password", "goobi");
+        try (Connection con = openConnection(); Statement create = con.createStatement()) {
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS urn_table (urn_id INT(10) UNSIGNED NOT NULL AUTO_INCREMENT, werk_id VARCHAR(255), "
+                    + "struktur_typ VARCHAR(255), urn VARCHAR(255), PRIMARY KEY (urn_id))");
+            UrnDatabaseSchema.ensureSchema(con);
+        }
+    }
+
+    @Test
+    public void testRegistrationIsClaimedOnce() throws SQLException {
+        try (Connection first = openConnection(); Connection second = openConnection();
+                UrnDatabaseSession firstSession = new UrnDatabaseSession(first); UrnDatabaseSession secondSession = new UrnDatabaseSession(second)) {
+            UrnOutbox firstNode = new UrnOutbox(firstSession);
+            UrnOutbox secondNode = new UrnOutbox(secondSession);
+            // leftovers of an earlier test run
+            for (UrnOutbox.Entry entry : firstNode.fetchDue(API_URI, 100)) {
+                firstNode.remove(entry);
+            }
+            firstNode.enqueue("urn:nbn:de:outbox-1", API_URI, Collections.singletonList("https://example.org/1"), -4711);
+
+            // both nodes see the due registration, only one of them may send it
+            List<UrnOutbox.Entry> firstBatch = firstNode.fetchDue(API_URI, 100);
+            List<UrnOutbox.Entry> secondBatch = secondNode.fetchDue(API_URI, 100);
+            assertEquals(1, firstBatch.size());
+            assertEquals(1, secondBatch.size());
+            assertTrue(firstNode.claim(firstBatch.get(0).getId(), 60));
+            assertFalse(secondNode.claim(secondBatch.get(0).getId(), 60));
+            assertTrue(secondNode.fetchDue(API_URI, 100).isEmpty());
+
+            assertTrue(firstNode.remove(firstBatch.get(0)));
+        }
+    }
+
+    @Test
+    public void testChangedUrlsAreKept() throws SQLException {
+        try (Connection con = openConnection(); UrnDatabaseSession session = new UrnDatabaseSession(con)) {
+            UrnOutbox outbox = new UrnOutbox(session);
+            for (UrnOutbox.Entry entry : outbox.fetchDue(API_URI, 100)) {
+                outbox.remove(entry);
+            }
+            outbox.enqueue("urn:nbn:de:outbox-2", API_URI, Collections.singletonList("https://example.org/old"), -4711);
+            UrnOutbox.Entry sent = outbox.fetchDue(API_URI, 100).get(0);
+            assertTrue(outbox.claim(sent.getId(), 60));
+
+            // a step replaces the urls while the old ones are sent
+            assertTrue(outbox.updateQueuedUrls("urn:nbn:de:outbox-2", API_URI, Collections.singletonList("https://example.org/new")));
+            assertFalse(outbox.remove(sent));
+            outbox.release(sent.getId());
+
+            List<UrnOutbox.Entry> due = outbox.fetchDue(API_URI, 100);
+            assertEquals(1, due.size());
+            assertEquals(Collections.singletonList("https://example.org/new"), due.get(0).getUrls());
+            assertTrue(outbox.remove(due.get(0)));
+        }
+    }
+
+    private static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, user, password);
+    }
+}
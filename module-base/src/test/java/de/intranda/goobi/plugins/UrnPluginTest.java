@@ -1,6 +1,8 @@
 package de.intranda.goobi.plugins;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -35,4 +37,15 @@ public class UrnPluginTest {
         String s = "xyz";
         assertNotNull(s);
     }
+
+    @Test
+    public void testUsesDocumentMetadata() {
+        assertTrue(UrnStepPlugin.usesDocumentMetadata("https://viewer.example.org/{meta.CatalogIDDigital}"));
+        assertTrue(UrnStepPlugin.usesDocumentMetadata("https://viewer.example.org/$(meta.topstruct.CatalogIDDigital)"));
+        assertTrue(UrnStepPlugin.usesDocumentMetadata("https://viewer.example.org/{metas.Author}"));
+        // placeholders without the document and urls that only contain the word
+        assertFalse(UrnStepPlugin.usesDocumentMetadata("https://viewer.example.org/viewer/resolver?urn={pi.urn}"));
+        assertFalse(UrnStepPlugin.usesDocumentMetadata("https://metadata.example.org/{processid}"));
+        assertFalse(UrnStepPlugin.usesDocumentMetadata("https://viewer.example.org/{db_meta.CatalogIDDigital}"));
+    }
 }
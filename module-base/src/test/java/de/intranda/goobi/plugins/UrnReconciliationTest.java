@@ -0,0 +1,160 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reconciles test rows of the urn_table with the {@link MockUrnResolver}. The test needs a MySQL database and is skipped unless it is started with
+ * -Durn.test.jdbcUrl=jdbc:mysql://... (and optionally -Durn.test.user and -Durn.test.password).
+ */
+public class UrnReconciliationTest {
+
+    private static final String NAMESPACE = "urn:nbn:de:test-reconciliation";
+    private static final String TEST_PREFIX = "urn-reconciliation-test-";
+
+    private static String jdbcUrl;
+    private static String user;
+    private static String password;
+    private static MockUrnResolver resolver;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        jdbcUrl = System.getProperty("urn.test.jdbcUrl");
+        Assume.assumeNotNull(jdbcUrl);
+        user = System.getProperty("urn.test.user", "goobi");
+        password = System.getProperty("urn.test.password", "goobi");
+        try (Connection con = openConnection(); Statement create = con.createStatement()) {
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS urn_table (urn_id INT(10) UNSIGNED NOT NULL AUTO_INCREMENT, werk_id VARCHAR(255), "
+                    + "struktur_typ VARCHAR(255), urn VARCHAR(255), PRIMARY KEY (urn_id))");
+        }
+        resolver = new MockUrnResolver();
+        UrnHttpClientRegistry.setSslContext(MockUrnResolver.createClientSslContext());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (jdbcUrl == null) {
+            return;
+        }
+        UrnHttpClientRegistry.closeAll();
+        UrnHttpClientRegistry.setSslContext(null);
+        resolver.close();
+        try (Connection con = openConnection(); PreparedStatement delete = con.prepareStatement("DELETE FROM urn_table WHERE werk_id LIKE ?")) {
+            delete.setString(1, TEST_PREFIX + "%");
+            delete.executeUpdate();
+        }
+    }
+
+    @Test
+    public void testReconcileAndRepair() throws Exception {
+        String registered = UrnGenerator.buildUrn(NAMESPACE, null, "900001", true);
+        String missing = UrnGenerator.buildUrn(NAMESPACE, null, "900002", true);
+        String invalid = missing.substring(0, missing.length() - 1) + ((missing.charAt(missing.length() - 1) - '0' + 1) % 10);
+        resolver.addUrn(registered, Collections.singletonList("https://example.org"));
+
+        int firstId = insert("registered", "Monograph", registered);
+        insert("missing", "Monograph", missing);
+        insert("invalid", "Monograph", invalid);
+        int notStoredId = insert("notstored", "Monograph", null);
+        resolver.addUrn(UrnGenerator.buildUrn(NAMESPACE, null, String.valueOf(notStoredId), true), Collections.singletonList("https://example.org"));
+        int orphanedId = insert("orphaned", "Monograph", null);
+        // a reserved id that was never used
+        insert("reserved", UrnIdBlockAllocator.RESERVED_MARKER, null);
+        // a chapter whose URN was registered, but could not be written afterwards
+        int unwrittenId = registerWithoutWriting("unwritten", "Chapter");
+
+        XMLConfiguration xml = new XMLConfiguration();
+        xml.load(new StringReader("<config_plugin><config><apiUri>" + resolver.getUri() + "</apiUri><namespace>" + NAMESPACE + "</namespace>"
+                + "<checksum>true</checksum><generationMethod>increment</generationMethod></config></config_plugin>"));
+        UrnConfiguration configuration = new UrnConfiguration(xml.configurationAt("config"));
+        UrnReconciliation reconciliation =
+                new UrnReconciliation(configuration, new UrnRestClient(resolver.getUri(), NAMESPACE, "user", "password", 4, null), 4);
+        reconciliation.setRepair(true);
+        reconciliation.setStartId(firstId);
+
+        StringWriter report = new StringWriter();
+        UrnReconciliation.Summary summary;
+        try (Connection cursorConnection = openConnection(); Connection repairConnection = openConnection();
+                UrnDatabaseSession cursorSession = new UrnDatabaseSession(cursorConnection);
+                UrnDatabaseSession repairSession = new UrnDatabaseSession(repairConnection)) {
+            summary = reconciliation.run(cursorSession, repairSession, report);
+        }
+
+        assertEquals(1, summary.getCount(UrnReconciliation.Status.OK));
+        assertEquals(1, summary.getCount(UrnReconciliation.Status.MISSING_AT_RESOLVER));
+        assertEquals(1, summary.getCount(UrnReconciliation.Status.INVALID_CHECKSUM));
+        assertEquals(2, summary.getCount(UrnReconciliation.Status.NOT_STORED));
+        assertEquals(1, summary.getCount(UrnReconciliation.Status.ORPHANED));
+        assertEquals(1, summary.getCount(UrnReconciliation.Status.RESERVED));
+        assertTrue(report.toString().contains(missing + "\tMISSING_AT_RESOLVER\tnone"));
+        assertTrue(report.toString().contains("\tNOT_STORED\turn written"));
+
+        assertEquals(UrnGenerator.buildUrn(NAMESPACE, null, String.valueOf(notStoredId), true), readUrn(notStoredId));
+        assertEquals(UrnGenerator.buildUrn(NAMESPACE, null, String.valueOf(unwrittenId), true), readUrn(unwrittenId));
+        assertNull(readUrn(orphanedId));
+    }
+
+    /**
+     * takes an id from a reserved block like a step, assigns it and registers its URN, but does not write the URN
+     *
+     * @return the id of the entry
+     */
+    private static int registerWithoutWriting(String workId, String structType) throws Exception {
+        try (Connection con = openConnection(); UrnDatabaseSession session = new UrnDatabaseSession(con);
+                UrnMySqlRepository repository = new UrnMySqlRepository(-1, 1, session)) {
+            UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.INCREMENT, true, repository);
+            Urn urn = generator.getUrnId(TEST_PREFIX + workId, structType, false);
+            String newUrn = generator.generateUrn(NAMESPACE, null, urn);
+            generator.assignUrnId(urn, newUrn);
+            resolver.addUrn(newUrn, Collections.singletonList("https://example.org"));
+            return urn.getId();
+        }
+    }
+
+    private static int insert(String workId, String structType, String urn) throws SQLException {
+        try (Connection con = openConnection(); PreparedStatement insert =
+                con.prepareStatement("INSERT INTO urn_table (werk_id, struktur_typ, urn) VALUES (?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+            insert.setString(1, TEST_PREFIX + workId);
+            insert.setString(2, structType);
+            insert.setString(3, urn);
+            insert.executeUpdate();
+            try (ResultSet rs = insert.getGeneratedKeys()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * @return the URN of the row or null if the row or its URN does not exist
+     */
+    private static String readUrn(int urnId) throws SQLException {
+        try (Connection con = openConnection(); PreparedStatement query = con.prepareStatement("SELECT urn FROM urn_table WHERE urn_id = ?")) {
+            query.setInt(1, urnId);
+            try (ResultSet rs = query.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    private static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, user, password);
+    }
+}
@@ -0,0 +1,310 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.Process;
+import org.goobi.production.enums.PluginReturnValue;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.responsehandler.UrnHttpStatusException;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Runs the client and the plugin against the local {@link MockUrnResolver} with many parallel requests. No network and no database are needed.
+ */
+@Log4j2
+public class UrnResolverIntegrationTest {
+
+    private static final String NAMESPACE = "urn:nbn:de:test";
+    private static final String URL = "https://viewer.example.org/viewer/resolver?urn={pi.urn}";
+    private static final int THREADS = 32;
+
+    private static MockUrnResolver resolver;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        resolver = new MockUrnResolver();
+        UrnHttpClientRegistry.setSslContext(MockUrnResolver.createClientSslContext());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        UrnHttpClientRegistry.closeAll();
+        UrnHttpClientRegistry.setSslContext(null);
+        resolver.close();
+    }
+
+    @Before
+    public void setUp() {
+        resolver.setLatencyMillis(2);
+        resolver.setJitterMillis(5);
+        resolver.setThrottleRate(0);
+        resolver.setErrorRate(0);
+    }
+
+    @After
+    public void tearDown() {
+        resolver.setThrottleRate(0);
+        resolver.setErrorRate(0);
+    }
+
+    @Test
+    public void testParallelRegistrationsWithThrottling() throws Exception {
+        resolver.setThrottleRate(0.1);
+        UrnRestClient client = createClient();
+        client.configureRateLimit(0, 50);
+        int perThread = 25;
+        int createsBefore = resolver.getCreateRequests().get();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    String urn = NAMESPACE + "-parallel-" + thread + "-" + i;
+                    assertEquals(urn, client.registerUrn(urn, Collections.singletonList(URL)));
+                    assertTrue(client.replaceUrls(urn, Collections.singletonList(URL + "&page=1")));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+        log.info("Registered and updated " + THREADS * perThread + " URNs in " + String.format("%.2f", seconds) + " s, "
+                + resolver.getThrottledRequests().get() + " throttled requests, " + client.getRateLimiter());
+
+        // throttled requests are sent again, so that every URN is created exactly once
+        assertEquals(THREADS * perThread, resolver.getCreateRequests().get() - createsBefore);
+        assertEquals(Collections.singletonList("https://viewer.example.org/viewer/resolver?urn=" + NAMESPACE + "-parallel-0-0&page=1"),
+                resolver.getUrls(NAMESPACE + "-parallel-0-0"));
+    }
+
+    @Test
+    public void testErrorResponses() throws Exception {
+        UrnRestClient client = createClient();
+        String urn = NAMESPACE + "-conflict";
+        resolver.addUrn(urn, Collections.singletonList(URL));
+        assertStatus(409, () -> client.registerUrn(urn, Collections.singletonList(URL)));
+        assertStatus(404, () -> client.replaceUrls(NAMESPACE + "-unknown", Collections.singletonList(URL)));
+        assertTrue(client.urnExists(urn));
+        assertFalse(client.urnExists(NAMESPACE + "-unknown"));
+
+        resolver.setErrorRate(1);
+        assertStatus(500, () -> client.registerUrn(NAMESPACE + "-error", Collections.singletonList(URL)));
+
+        // a resolver that never stops throttling gives up after the configured retries
+        resolver.setErrorRate(0);
+        resolver.setThrottleRate(1);
+        client.configureRateLimit(0, 2);
+        assertStatus(429, () -> client.replaceUrls(urn, Collections.singletonList(URL)));
+    }
+
+    @Test
+    public void testPluginRunsInParallel() throws Exception {
+        int processes = 8;
+        int chapters = 200;
+        List<Path> metaFiles = new ArrayList<>();
+        for (int p = 0; p < processes; p++) {
+            metaFiles.add(createMetaFile(p, chapters));
+        }
+        UrnUrlFingerprints fingerprints = new InMemoryFingerprints();
+
+        int patchesBefore = resolver.getPatchRequests().get();
+        runPlugins(metaFiles, fingerprints);
+        assertEquals(processes * (chapters + 1), resolver.getPatchRequests().get() - patchesBefore);
+
+        // nothing changed, the second run does not send any request
+        patchesBefore = resolver.getPatchRequests().get();
+        runPlugins(metaFiles, fingerprints);
+        assertEquals(0, resolver.getPatchRequests().get() - patchesBefore);
+    }
+
+    @Test
+    public void testAbortKeepsRegistrationsInFlight() throws Exception {
+        String namespace = "urn:nbn:de:abort";
+        // the monograph gets the id 1, its chapters 2 and 3
+        String conflicting = namespace + "-2";
+        String inFlight = namespace + "-3";
+        resolver.setLatencyMillis(200);
+        resolver.setJitterMillis(0);
+        resolver.addUrn(conflicting, Collections.singletonList(URL));
+        resolver.delayCreation(inFlight, 1000);
+
+        UrnInMemoryRepository repository = new UrnInMemoryRepository();
+        InMemoryCheckpoint checkpoint = new InMemoryCheckpoint();
+        UrnTestProcess process = new UrnTestProcess(-2, "PPN-abort", 2);
+        UrnStepPlugin plugin = new UrnStepPlugin();
+        plugin.initialize(process, createConfiguration(namespace, 2), createClient(), UrnTestProcess.getPrefs());
+        plugin.setRepository(repository);
+        plugin.setCheckpoint(checkpoint);
+        plugin.setUrlFingerprints(new InMemoryFingerprints());
+        assertEquals(PluginReturnValue.ERROR, plugin.run());
+
+        // the first chapter failed while the registration of the second one was still in flight, it is kept for the next run
+        assertFalse(repository.containsUrn(conflicting));
+        assertNotNull(resolver.getUrls(inFlight));
+        assertTrue(repository.containsUrn(inFlight));
+        assertEquals(inFlight, checkpoint.getUrns().get("0/1|Chapter"));
+        assertEquals(0, process.getWriteCount());
+    }
+
+    @Test
+    public void testAbortStopsThrottledRetries() throws Exception {
+        String namespace = "urn:nbn:de:abortthrottle";
+        String conflicting = namespace + "-2";
+        String throttled = namespace + "-3";
+        // an own resolver, the long pause of its rate limit does not slow down the other tests
+        try (MockUrnResolver throttlingResolver = new MockUrnResolver()) {
+            throttlingResolver.setLatencyMillis(200);
+            throttlingResolver.addUrn(conflicting, Collections.singletonList(URL));
+            throttlingResolver.throttleCreation(throttled, 60);
+
+            UrnInMemoryRepository repository = new UrnInMemoryRepository();
+            InMemoryCheckpoint checkpoint = new InMemoryCheckpoint();
+            UrnStepPlugin plugin = new UrnStepPlugin();
+            plugin.initialize(new UrnTestProcess(-3, "PPN-abortthrottle", 2), createConfiguration(throttlingResolver, namespace, 2),
+                    new UrnRestClient(throttlingResolver.getUri(), namespace, "user", "password", THREADS, null), UrnTestProcess.getPrefs());
+            plugin.setRepository(repository);
+            plugin.setCheckpoint(checkpoint);
+            plugin.setUrlFingerprints(new InMemoryFingerprints());
+            long start = System.currentTimeMillis();
+            assertEquals(PluginReturnValue.ERROR, plugin.run());
+
+            // the throttled registration was not processed, it is not sent again after the first chapter failed and its entry is removed
+            assertTrue(System.currentTimeMillis() - start < 30000);
+            assertNull(throttlingResolver.getUrls(throttled));
+            assertFalse(repository.containsUrn(throttled));
+            assertTrue(checkpoint.getUrns().isEmpty());
+            assertEquals(1, repository.size());
+        }
+    }
+
+    /**
+     * creates a configuration that registers the URNs of the monograph and its chapters without scanning the METS file first
+     */
+    private static UrnConfiguration createConfiguration(String namespace, int parallelRequests) throws Exception {
+        return createConfiguration(resolver, namespace, parallelRequests);
+    }
+
+    private static UrnConfiguration createConfiguration(MockUrnResolver urnResolver, String namespace, int parallelRequests) throws Exception {
+        XMLConfiguration xml = new XMLConfiguration();
+        xml.load(new StringReader("<config_plugin><config><apiUri>" + urnResolver.getUri() + "</apiUri><namespace>" + namespace + "</namespace>"
+                + "<url>" + URL + "</url><preScan>false</preScan><parallelRequests>" + parallelRequests + "</parallelRequests>"
+                + "<allowed><type>Chapter</type></allowed></config></config_plugin>"));
+        return new UrnConfiguration(xml.configurationAt("config"));
+    }
+
+    private void runPlugins(List<Path> metaFiles, UrnUrlFingerprints fingerprints) throws Exception {
+        XMLConfiguration xml = new XMLConfiguration();
+        xml.load(new StringReader("<config_plugin><config><apiUri>" + resolver.getUri() + "</apiUri><namespace>" + NAMESPACE + "</namespace>"
+                + "<url>" + URL + "</url><parallelRequests>8</parallelRequests><allowed><type>Chapter</type></allowed></config></config_plugin>"));
+        UrnConfiguration configuration = new UrnConfiguration(xml.configurationAt("config"));
+        UrnRestClient client = createClient();
+
+        ExecutorService executor = Executors.newFixedThreadPool(metaFiles.size());
+        List<Future<PluginReturnValue>> results = new ArrayList<>();
+        for (Path metaFile : metaFiles) {
+            results.add(executor.submit(() -> {
+                UrnStepPlugin plugin = new UrnStepPlugin();
+                plugin.initialize(new MetaFileProcess(metaFile), configuration, client, null);
+                plugin.setUrlFingerprints(fingerprints);
+                return plugin.run();
+            }));
+        }
+        for (Future<PluginReturnValue> result : results) {
+            assertEquals(PluginReturnValue.FINISH, result.get());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * creates a METS file with a monograph and its chapters, all of them already have a URN that is known to the resolver
+     */
+    private Path createMetaFile(int process, int chapters) throws Exception {
+        StringBuilder dmdSecs = new StringBuilder();
+        StringBuilder divs = new StringBuilder();
+        for (int i = 0; i <= chapters; i++) {
+            String urn = NAMESPACE + "-process-" + process + "-" + i;
+            resolver.addUrn(urn, Collections.singletonList(URL));
+            dmdSecs.append("<mets:dmdSec ID=\"DMDLOG_").append(i).append("\"><mets:mdWrap MDTYPE=\"MODS\"><mets:xmlData><mods:mods>")
+                    .append("<mods:extension><goobi:goobi><goobi:metadata name=\"_urn\">").append(urn)
+                    .append("</goobi:metadata></goobi:goobi></mods:extension></mods:mods></mets:xmlData></mets:mdWrap></mets:dmdSec>\n");
+            if (i > 0) {
+                divs.append("<mets:div ID=\"LOG_").append(i).append("\" DMDID=\"DMDLOG_").append(i).append("\" TYPE=\"Chapter\"/>\n");
+            }
+        }
+        String mets = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" "
+                + "xmlns:mods=\"http://www.loc.gov/mods/v3\" xmlns:goobi=\"http://meta.goobi.org/v1.5.1/\">\n" + dmdSecs
+                + "<mets:structMap TYPE=\"LOGICAL\"><mets:div ID=\"LOG_0\" DMDID=\"DMDLOG_0\" TYPE=\"Monograph\">\n" + divs
+                + "</mets:div></mets:structMap>\n</mets:mets>\n";
+        Path metaFile = folder.newFolder("process" + process).toPath().resolve("meta.xml");
+        Files.write(metaFile, mets.getBytes(StandardCharsets.UTF_8));
+        return metaFile;
+    }
+
+    private static UrnRestClient createClient() {
+        return new UrnRestClient(resolver.getUri(), NAMESPACE, "user", "password", THREADS, null);
+    }
+
+    private static void assertStatus(int status, ThrowingCall call) throws Exception {
+        try {
+            call.call();
+            fail("expected status " + status);
+        } catch (UrnHttpStatusException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    private interface ThrowingCall {
+        Object call() throws Exception;
+    }
+
+    /**
+     * a process whose METS file is a local file
+     */
+    private static class MetaFileProcess extends Process {
+        private static final long serialVersionUID = 1L;
+        private final transient Path metaFile;
+
+        private MetaFileProcess(Path metaFile) {
+            this.metaFile = metaFile;
+            setId(-1);
+        }
+
+        @Override
+        public String getMetadataFilePath() {
+            return metaFile.toString();
+        }
+    }
+}
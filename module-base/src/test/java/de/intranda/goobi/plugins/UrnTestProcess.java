@@ -0,0 +1,99 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.goobi.beans.Process;
+
+import lombok.Getter;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+/**
+ * A process whose document is created in memory with the test ruleset instead of being read from a METS file, a monograph with its chapters. The
+ * plugin can register new URNs for it without Goobi workflow and without database. Writing the document only counts the calls.
+ */
+public class UrnTestProcess extends Process {
+    private static final long serialVersionUID = 1L;
+    private static Prefs prefs;
+
+    private final transient Fileformat fileformat;
+    @Getter
+    private int writeCount = 0;
+
+    /**
+     * @param id id of the process
+     * @param ppn identifier of the monograph
+     * @param chapters number of chapters
+     * @throws Exception if the document could not be created
+     */
+    public UrnTestProcess(int id, String ppn, int chapters) throws Exception {
+        setId(id);
+        Prefs ruleset = getPrefs();
+        DigitalDocument document = new DigitalDocument();
+        DocStruct monograph = document.createDocStruct(ruleset.getDocStrctTypeByName("Monograph"));
+        Metadata identifier = new Metadata(ruleset.getMetadataTypeByName("CatalogIDDigital"));
+        identifier.setValue(ppn);
+        monograph.addMetadata(identifier);
+        for (int i = 0; i < chapters; i++) {
+            monograph.addChild(document.createDocStruct(ruleset.getDocStrctTypeByName("Chapter")));
+        }
+        document.setLogicalDocStruct(monograph);
+        fileformat = new MetsMods(ruleset);
+        fileformat.setDigitalDocument(document);
+    }
+
+    /**
+     * @return the preferences of the test ruleset, they are loaded once
+     * @throws Exception if the ruleset could not be loaded
+     */
+    public static synchronized Prefs getPrefs() throws Exception {
+        if (prefs == null) {
+            prefs = new Prefs();
+            prefs.loadPrefs(Paths.get(UrnTestProcess.class.getResource("/ruleset.xml").toURI()).toString());
+        }
+        return prefs;
+    }
+
+    @Override
+    public Fileformat readMetadataFile() {
+        return fileformat;
+    }
+
+    @Override
+    public boolean writeMetadataFile(Fileformat gdzfile) {
+        writeCount++;
+        return true;
+    }
+
+    /**
+     * @return the METS URNs of the monograph and its chapters in the order of the tree, null for elements without URN
+     */
+    public List<String> getMetsUrns() throws Exception {
+        DocStruct monograph = fileformat.getDigitalDocument().getLogicalDocStruct();
+        List<String> urns = new ArrayList<>();
+        urns.add(getMetsUrn(monograph));
+        if (monograph.getAllChildren() != null) {
+            for (DocStruct chapter : monograph.getAllChildren()) {
+                urns.add(getMetsUrn(chapter));
+            }
+        }
+        return urns;
+    }
+
+    private static String getMetsUrn(DocStruct element) {
+        if (element.getAllMetadata() != null) {
+            for (Metadata md : element.getAllMetadata()) {
+                if ("_urn".equals(md.getType().getName())) {
+                    return md.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
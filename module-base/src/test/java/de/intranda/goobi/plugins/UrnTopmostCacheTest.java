@@ -0,0 +1,65 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrnTopmostCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testGetReturnsCopies() {
+        UrnTopmostCache cache = new UrnTopmostCache(10, 100, now::get);
+        cache.put("PPN123", "Periodical", new Urn(1, "urn:nbn:de:test-1", true));
+        Urn urn = cache.get("PPN123", "Periodical");
+        Assert.assertEquals(1, urn.getId());
+        Assert.assertEquals("urn:nbn:de:test-1", urn.getUrn());
+        Assert.assertTrue(urn.isOldEntry());
+        urn.setUrn("changed");
+        Assert.assertEquals("urn:nbn:de:test-1", cache.get("PPN123", "Periodical").getUrn());
+        Assert.assertNull(cache.get("PPN123", "Volume"));
+    }
+
+    @Test
+    public void testEntriesWithoutUrnAreNotCached() {
+        UrnTopmostCache cache = new UrnTopmostCache(10, 100, now::get);
+        cache.put("PPN123", "Periodical", new Urn(1, null, true));
+        Assert.assertNull(cache.get("PPN123", "Periodical"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiration() {
+        UrnTopmostCache cache = new UrnTopmostCache(10, 100, now::get);
+        cache.put("PPN123", "Periodical", new Urn(1, "urn:nbn:de:test-1", true));
+        now.set(100);
+        Assert.assertNotNull(cache.get("PPN123", "Periodical"));
+        now.set(101);
+        Assert.assertNull(cache.get("PPN123", "Periodical"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        UrnTopmostCache cache = new UrnTopmostCache(2, 100, now::get);
+        cache.put("PPN1", "Periodical", new Urn(1, "urn:nbn:de:test-1", true));
+        cache.put("PPN2", "Periodical", new Urn(2, "urn:nbn:de:test-2", true));
+        cache.get("PPN1", "Periodical");
+        cache.put("PPN3", "Periodical", new Urn(3, "urn:nbn:de:test-3", true));
+        Assert.assertNotNull(cache.get("PPN1", "Periodical"));
+        Assert.assertNull(cache.get("PPN2", "Periodical"));
+        Assert.assertNotNull(cache.get("PPN3", "Periodical"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        UrnTopmostCache cache = new UrnTopmostCache(10, 100, now::get);
+        cache.put("PPN1", "Periodical", new Urn(1, "urn:nbn:de:test-1", true));
+        cache.put("PPN2", "Periodical", new Urn(2, "urn:nbn:de:test-2", true));
+        cache.invalidate(1);
+        Assert.assertNull(cache.get("PPN1", "Periodical"));
+        Assert.assertNotNull(cache.get("PPN2", "Periodical"));
+    }
+}
@@ -0,0 +1,25 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrnUrlFingerprintsTest {
+
+    private static final String URL = "https://viewer.example.org/viewer/resolver?urn={pi.urn}";
+
+    @Test
+    public void testFingerprint() {
+        String fingerprint = UrnUrlFingerprints.fingerprint("urn:nbn:de:test-1", Collections.singletonList(URL));
+        Assert.assertEquals(64, fingerprint.length());
+        Assert.assertTrue(fingerprint.matches("[0-9a-f]+"));
+        Assert.assertEquals(fingerprint, UrnUrlFingerprints.fingerprint("urn:nbn:de:test-1", Collections.singletonList(URL)));
+
+        // the URN is part of the urls that are sent
+        Assert.assertNotEquals(fingerprint, UrnUrlFingerprints.fingerprint("urn:nbn:de:test-2", Collections.singletonList(URL)));
+        Assert.assertNotEquals(fingerprint,
+                UrnUrlFingerprints.fingerprint("urn:nbn:de:test-1", Arrays.asList(URL, "https://other.example.org/{pi.urn}")));
+    }
+}
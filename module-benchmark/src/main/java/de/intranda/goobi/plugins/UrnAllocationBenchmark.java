@@ -0,0 +1,64 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation and writing of the entries of one volume with ten chapters by parallel steps that share a {@link UrnInMemoryRepository}, without any
+ * database access
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class UrnAllocationBenchmark {
+
+    private static final int CHAPTERS = 10;
+
+    private UrnInMemoryRepository repository;
+
+    @State(Scope.Thread)
+    public static class Step {
+        private int volume;
+    }
+
+    @Setup
+    public void setUp() {
+        repository = new UrnInMemoryRepository();
+    }
+
+    @Benchmark
+    public int allocateVolume(Step step) throws Exception {
+        String workId = Thread.currentThread().getName() + "-" + ++step.volume;
+        try (UrnGenerator generator = new UrnGenerator(UrnGenerationMethod.INCREMENT, true, repository)) {
+            Urn anchor = generator.getUrnId("anchor", "Periodical", true);
+            if (!anchor.isOldEntry()) {
+                anchor.setUrn(generator.generateUrn("urn:nbn:de:gbv:NN", null, anchor));
+                generator.writeUrnToDatabase(anchor);
+            }
+            Urn volume = generator.getUrnId(workId, "Volume", true);
+            volume.setUrn(generator.generateUrn("urn:nbn:de:gbv:NN", null, volume));
+            generator.writeUrnToDatabase(volume);
+            for (int i = 0; i < CHAPTERS; i++) {
+                Urn chapter = generator.getUrnId(workId, "Chapter", false);
+                chapter.setUrn(generator.generateUrn("urn:nbn:de:gbv:NN", null, chapter));
+                generator.writeUrnToDatabase(chapter);
+            }
+            return volume.getId();
+        }
+    }
+}
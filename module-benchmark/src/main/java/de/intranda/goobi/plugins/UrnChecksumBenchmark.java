@@ -0,0 +1,38 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calculation and validation of the URN check digit
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UrnChecksumBenchmark {
+
+    private String urn = "urn:nbn:de:gbv:NN-infix-20261018120000123456";
+    private String urnWithChecksum = urn + UrnChecksum.calculate(urn);
+
+    @Benchmark
+    public int calculateChecksum() {
+        return UrnChecksum.calculate(urn);
+    }
+
+    @Benchmark
+    public boolean isValidChecksum() {
+        return UrnChecksum.isValidChecksum(urnWithChecksum);
+    }
+}
@@ -0,0 +1,53 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of the URN string for a new database entry, without any database access
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UrnGeneratorBenchmark {
+
+    @Param({ "increment", "timestamp" })
+    private String generationMethod;
+
+    @Param({ "false", "true" })
+    private boolean checksum;
+
+    private UrnGenerator generator;
+    private int id;
+
+    @Setup
+    public void setUp() {
+        UrnGenerationMethod method = "timestamp".equals(generationMethod) ? UrnGenerationMethod.TIMESTAMP : UrnGenerationMethod.INCREMENT;
+        generator = new UrnGenerator(method, checksum, -1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        generator.close();
+    }
+
+    @Benchmark
+    public String generateUrn() {
+        return generator.generateUrn("urn:nbn:de:gbv:NN", "infix-", new Urn(++id, null, false));
+    }
+}
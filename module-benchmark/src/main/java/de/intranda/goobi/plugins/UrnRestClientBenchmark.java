@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.goobi.plugins.messages.UrnJsonCodec;
+import de.intranda.goobi.plugins.responsehandler.CreateResponseHandler;
+
+/**
+ * Building the JSON bodies of the requests and parsing the response of a registration, without any network access
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UrnRestClientBenchmark {
+
+    private static final String URN = "urn:nbn:de:gbv:NN-20261018120000123456";
+    private static final String CREATE_RESPONSE = "{\"urn\":\"" + URN + "\",\"created\":\"2026-10-18T12:00:00Z\",\"lastModified\":"
+            + "\"2026-10-18T12:00:00Z\",\"namespace\":\"https://api.nbn-resolving.org/v2/namespaces/name/urn:nbn:de:gbv:NN\","
+            + "\"self\":\"https://api.nbn-resolving.org/v2/urns/urn/" + URN + "\"}";
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private List<String> urls = Arrays.asList("https://viewer.example.org/viewer/resolver?urn={pi.urn}");
+
+    @Benchmark
+    public String createUrnBody() {
+        return UrnRestClient.createUrnBodyString(URN, urls);
+    }
+
+    @Benchmark
+    public String replaceUrlsBody() {
+        return UrnRestClient.replaceUrlsBodyString(URN, urls);
+    }
+
+    @Benchmark
+    public void writeCreateUrnEntity() throws IOException {
+        // the entity is written directly into the connection without building the body as string
+        UrnJsonCodec.createUrnEntity(URN, urls).writeTo(DISCARD);
+    }
+
+    @Benchmark
+    public String parseCreateResponse() throws IOException {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 201, "Created");
+        response.setEntity(new StringEntity(CREATE_RESPONSE, ContentType.APPLICATION_JSON));
+        return new CreateResponseHandler().handleResponse(response);
+    }
+}
@@ -0,0 +1,117 @@
+package de.intranda.goobi.plugins;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.goobi.beans.Process;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+
+/**
+ * Traversal of synthetic DocStruct trees by {@link UrnStepPlugin#setUrn(DocStruct)}. All elements already have a URN of a foreign namespace, so
+ * the benchmark measures the traversal and the metadata lookups without database or network access.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UrnTraversalBenchmark {
+
+    private static final int CHILDREN_PER_ELEMENT = 10;
+    private static final String CONFIGURATION = "<config_plugin><config><namespace>urn:nbn:de:gbv:NN</namespace>"
+            + "<createModsUrns>true</createModsUrns><allowed><type>Chapter</type></allowed></config></config_plugin>";
+
+    @Param({ "10", "100", "1000", "10000" })
+    private int elements;
+
+    private UrnStepPlugin plugin;
+    private DocStruct logical;
+
+    @Setup
+    public void setUp() throws Exception {
+        Path ruleset = Files.createTempFile("benchmark_ruleset", ".xml");
+        try (InputStream in = getClass().getResourceAsStream("/benchmark_ruleset.xml")) {
+            Files.copy(in, ruleset, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Prefs prefs = new Prefs();
+        prefs.loadPrefs(ruleset.toString());
+        Files.delete(ruleset);
+
+        logical = createTree(prefs);
+
+        XMLConfiguration xml = new XMLConfiguration();
+        xml.load(new StringReader(CONFIGURATION));
+        Process process = new Process();
+        process.setId(-1);
+        plugin = new UrnStepPlugin();
+        plugin.initialize(process, new UrnConfiguration(xml.configurationAt("config")), null, prefs);
+    }
+
+    @Benchmark
+    public DocStruct setUrn() throws Exception {
+        plugin.setUrn(logical);
+        return logical;
+    }
+
+    /**
+     * creates a tree with the given number of elements, every element has up to ten children
+     */
+    private DocStruct createTree(Prefs prefs) throws Exception {
+        DigitalDocument dd = new DigitalDocument();
+        DocStruct top = dd.createDocStruct(prefs.getDocStrctTypeByName("Monograph"));
+        addMetadata(prefs, top, "CatalogIDDigital", "PPN123456789");
+        addUrnMetadata(prefs, top, 0);
+        dd.setLogicalDocStruct(top);
+
+        Deque<DocStruct> parents = new ArrayDeque<>();
+        parents.add(top);
+        int created = 1;
+        while (created < elements) {
+            DocStruct parent = parents.pollFirst();
+            for (int i = 0; i < CHILDREN_PER_ELEMENT && created < elements; i++) {
+                DocStruct chapter = dd.createDocStruct(prefs.getDocStrctTypeByName("Chapter"));
+                addMetadata(prefs, chapter, "TitleDocMain", "Chapter " + created);
+                addUrnMetadata(prefs, chapter, created);
+                parent.addChild(chapter);
+                parents.addLast(chapter);
+                created++;
+            }
+        }
+        return top;
+    }
+
+    private static void addUrnMetadata(Prefs prefs, DocStruct ds, int number) throws Exception {
+        String urn = "urn:nbn:de:other-" + number;
+        addMetadata(prefs, ds, "_urn", urn);
+        addMetadata(prefs, ds, "URN", urn);
+    }
+
+    private static void addMetadata(Prefs prefs, DocStruct ds, String type, String value) throws Exception {
+        Metadata md = new Metadata(prefs.getMetadataTypeByName(type));
+        md.setValue(value);
+        ds.addMetadata(md);
+    }
+}